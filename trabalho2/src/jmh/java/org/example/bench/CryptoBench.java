@@ -0,0 +1,65 @@
+package org.example.bench;
+
+import org.example.common.Codecs;
+import org.example.common.CryptoUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** AES-GCM por tamanho de payload: blob v1 (byte[] inteiro), v2 (streaming em chunks) e o caminho adaptativo do v3. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBench {
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	public int size;
+
+	private byte[] key;
+	private byte[] aad;
+	private byte[] plain;
+	private byte[] blobV1;
+	private byte[] blobV2;
+
+	@Setup
+	public void setup() throws IOException {
+		key = CryptoUtils.rand(32);
+		aad = "bench".getBytes();
+		plain = CryptoUtils.rand(size);
+		blobV1 = CryptoUtils.encryptAesGcm(key, plain, aad);
+		ByteArrayOutputStream bo = new ByteArrayOutputStream(size + size / 1000 + 64);
+		CryptoUtils.encryptStream(key, new ByteArrayInputStream(plain), bo, aad, null);
+		blobV2 = bo.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] encryptV1() {
+		return CryptoUtils.encryptAesGcm(key, plain, aad);
+	}
+
+	@Benchmark
+	public byte[] decryptV1() {
+		return CryptoUtils.decryptAesGcm(key, blobV1, aad);
+	}
+
+	@Benchmark
+	public long encryptV2Stream() throws IOException {
+		return CryptoUtils.encryptStream(key, new ByteArrayInputStream(plain), OutputStreamSink.INSTANCE, aad, null);
+	}
+
+	// plaintext aleatório: mede o custo da amostra de compressão antes de cair no v2
+	@Benchmark
+	public long encryptAdaptiveStream() throws IOException {
+		return CryptoUtils.encryptStream(key, new ByteArrayInputStream(plain), OutputStreamSink.INSTANCE, aad, Codecs.DEFLATE);
+	}
+
+	@Benchmark
+	public long decryptV2Stream() throws IOException {
+		return CryptoUtils.decryptStream(key, new ByteArrayInputStream(blobV2), OutputStreamSink.INSTANCE, aad);
+	}
+}
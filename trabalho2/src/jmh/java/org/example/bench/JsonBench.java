@@ -0,0 +1,60 @@
+package org.example.bench;
+
+import com.google.gson.Gson;
+
+import org.example.common.ApiModels.*;
+import org.example.common.Json;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ida e volta de JSON como em Server.read/send: bytes da requisição -> record -> String -> bytes.
+ * {@code newGsonPerRequest} reproduz o {@code new Gson()} por requisição do read() antigo;
+ * {@code loginRoundTripCodec} é o caminho atual, stream -> {@link Json} -> stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBench {
+	private final Gson gson = new Gson();
+	private byte[] loginReq;
+	private LoginResp loginResp;
+
+	@Setup
+	public void setup() {
+		loginReq = gson.toJson(new LoginReq("alice", "uma senha razoavelmente longa")).getBytes(StandardCharsets.UTF_8);
+		loginResp = new LoginResp(true, "ok", "scrypt", 1 << 14, 8, 1, 32, "Jv4mwmBFG+wMLQuTw/ZD0g==", 30, 6);
+	}
+
+	@Benchmark
+	public byte[] loginRoundTrip() throws IOException {
+		LoginReq req;
+		try (Reader r = new InputStreamReader(new ByteArrayInputStream(loginReq), StandardCharsets.UTF_8)) {
+			req = gson.fromJson(r, LoginReq.class);
+		}
+		return (gson.toJson(loginResp) + req.username()).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] loginRoundTripNewGson() throws IOException {
+		LoginReq req;
+		try (Reader r = new InputStreamReader(new ByteArrayInputStream(loginReq), StandardCharsets.UTF_8)) {
+			req = new Gson().fromJson(r, LoginReq.class);
+		}
+		return (gson.toJson(loginResp) + req.username()).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public int loginRoundTripCodec() throws IOException {
+		LoginReq req = Json.read(new ByteArrayInputStream(loginReq), LoginReq.class);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		Json.write(out, loginResp);
+		return out.size() + req.username().length();
+	}
+}
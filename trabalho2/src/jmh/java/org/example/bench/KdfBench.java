@@ -0,0 +1,45 @@
+package org.example.bench;
+
+import org.example.common.CryptoUtils;
+import org.example.common.PasswordHasher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Custo de uma derivação: PBKDF2 (login no servidor) e scrypt (chave de arquivo no cliente). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class KdfBench {
+	// estados separados para que os parâmetros de um KDF não multipliquem as execuções do outro
+	@State(Scope.Thread)
+	public static class Pbkdf2 {
+		@Param({ "10000", "100000", "200000" })
+		public int iter;
+
+		final byte[] salt = PasswordHasher.randomSalt();
+	}
+
+	@State(Scope.Thread)
+	public static class Scrypt {
+		@Param({ "12", "14", "15" })
+		public int logN;
+
+		@Param({ "8" })
+		public int r;
+
+		final byte[] salt = PasswordHasher.randomSalt();
+	}
+
+	@Benchmark
+	public byte[] pbkdf2(Pbkdf2 s) {
+		return PasswordHasher.pbkdf2("senha-de-teste".toCharArray(), s.salt, s.iter, PasswordHasher.HASH_LEN);
+	}
+
+	@Benchmark
+	public byte[] scrypt(Scrypt s) {
+		return CryptoUtils.scrypt("senha-de-teste", s.salt, 1 << s.logN, s.r, 1, 32);
+	}
+}
@@ -0,0 +1,74 @@
+package org.example.bench;
+
+import org.example.server.BlobStore;
+import org.example.server.UserStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Uma página do /files para um usuário com muitos arquivos, por ordem e com/sem prefixo. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ListBench {
+	@Param({ "1000", "100000" })
+	public int files;
+
+	@Param({ "NAME", "TS", "SIZE" })
+	public UserStore.FileSort sort;
+
+	private Path dir;
+	private UserStore store;
+	private UserStore.StoredFile middle;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("list-bench");
+		store = new UserStore(dir.resolve("db.json").toFile(), new BlobStore(dir.resolve("blobs")), UserStore.Mode.WAL,
+				64L << 20, 1);
+		UserStore.UserRec r = new UserStore.UserRec();
+		r.username = "alice";
+		store.put(r);
+		Random rnd = new Random(1);
+		for (int i = 0; i < files; i++) {
+			UserStore.StoredFile sf = new UserStore.StoredFile();
+			sf.name = "dir" + (i % 100) + "/file" + i + ".bin";
+			sf.size = rnd.nextInt(1 << 20);
+			sf.ts = 1_700_000_000_000L + rnd.nextInt(1_000_000_000);
+			sf.sha256 = String.format("%064x", i);
+			r.files.put(sf.name, sf); // direto no mapa: popular pelo putFile pagaria o WAL
+			if (i == files / 2)
+				middle = sf;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		store.close();
+		try (var s = Files.walk(dir)) {
+			s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public List<UserStore.StoredFile> firstPage() {
+		return store.listFiles("alice", null, sort, false, null, 100);
+	}
+
+	@Benchmark
+	public List<UserStore.StoredFile> middlePageDesc() {
+		return store.listFiles("alice", null, sort, true, middle, 100);
+	}
+
+	// 1% dos arquivos no prefixo: por nome é range scan, por ts/size ordena só esse 1%
+	@Benchmark
+	public List<UserStore.StoredFile> prefixPage() {
+		return store.listFiles("alice", "dir42/", sort, false, null, 100);
+	}
+}
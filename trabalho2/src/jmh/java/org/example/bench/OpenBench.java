@@ -0,0 +1,72 @@
+package org.example.bench;
+
+import org.example.server.BlobStore;
+import org.example.server.UserStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/** Tempo de subida do UserStore pelo tamanho do banco: tudo em memória vs. só o índice (modo lazy). */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OpenBench {
+	@Param({ "1000", "20000" })
+	public int users;
+
+	@Param({ "0", "16777216" })
+	public long cacheBytes;
+
+	private Path dir;
+	private UserStore store;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("open-bench");
+		UserStore s = open(0);
+		for (int i = 0; i < users; i++) {
+			UserStore.UserRec r = new UserStore.UserRec();
+			r.username = "user" + i;
+			r.pwdStored = "pbkdf2$sha256$200000$c2FsdA==$ZGs=";
+			for (int f = 0; f < 20; f++) {
+				UserStore.StoredFile sf = new UserStore.StoredFile();
+				sf.name = "file" + f + ".bin";
+				sf.size = 4096;
+				sf.sha256 = String.format("%064x", i * 1000L + f);
+				r.files.put(sf.name, sf);
+			}
+			s.put(r);
+		}
+		s.close();
+		// a subida seguinte sem store.cacheBytes compacta o log: o banco medido já está só nos snapshots
+		open(0).close();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		try (var s = Files.walk(dir)) {
+			s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeStore() throws IOException {
+		store.close();
+	}
+
+	@Benchmark
+	public UserStore open() {
+		return store = open(cacheBytes);
+	}
+
+	private UserStore open(long cache) {
+		return new UserStore(dir.resolve("db.json").toFile(), new BlobStore(dir.resolve("blobs")), UserStore.Mode.WAL,
+				64L << 20, 16, cache);
+	}
+}
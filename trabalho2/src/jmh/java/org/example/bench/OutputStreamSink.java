@@ -0,0 +1,16 @@
+package org.example.bench;
+
+import java.io.OutputStream;
+
+/** Descarta tudo; mede só o custo de produzir os bytes. */
+final class OutputStreamSink extends OutputStream {
+	static final OutputStreamSink INSTANCE = new OutputStreamSink();
+
+	@Override
+	public void write(int b) {
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+	}
+}
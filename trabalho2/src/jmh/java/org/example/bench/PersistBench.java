@@ -0,0 +1,88 @@
+package org.example.bench;
+
+import com.google.gson.Gson;
+
+import org.example.server.BlobStore;
+import org.example.server.UserStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latência de um putFile pelo tamanho do banco: no modo JSON cada escrita regrava o shard inteiro
+ * (com 1 shard, o banco todo), no modo WAL deveria ficar constante.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PersistBench {
+	@Param({ "10", "1000", "10000" })
+	public int users;
+
+	@Param({ "1", "10" })
+	public int filesPerUser;
+
+	@Param({ "JSON", "WAL" })
+	public UserStore.Mode mode;
+
+	@Param({ "1", "16" })
+	public int shards;
+
+	private Path dir;
+	private UserStore store;
+	private long n;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("persist-bench");
+		// grava o banco inicial direto, sem pagar N escritas para popular
+		Map<String, UserStore.UserRec> m = new HashMap<>();
+		for (int i = 0; i < users; i++) {
+			UserStore.UserRec r = new UserStore.UserRec();
+			r.username = "user" + i;
+			r.pwdStored = "pbkdf2$sha256$200000$c2FsdA==$ZGs=";
+			r.saltB64 = "c2FsdA==";
+			r.totpSecretBase32 = "JBSWY3DPEHPK3PXP";
+			for (int f = 0; f < filesPerUser; f++) {
+				UserStore.StoredFile sf = new UserStore.StoredFile();
+				sf.name = "file" + f + ".bin";
+				sf.size = 4096;
+				sf.ts = System.currentTimeMillis();
+				sf.sha256 = String.format("%064x", i * 1000L + f);
+				r.files.put(sf.name, sf);
+			}
+			m.put(r.username, r);
+		}
+		File db = dir.resolve("db.json").toFile();
+		try (Writer wr = new OutputStreamWriter(new FileOutputStream(db), StandardCharsets.UTF_8)) {
+			new Gson().toJson(m, wr);
+		}
+		// o db.json no formato antigo é migrado para os shards na abertura
+		store = new UserStore(db, new BlobStore(dir.resolve("blobs")), mode, 64L << 20, shards);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		store.close();
+		try (var s = Files.walk(dir)) {
+			s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public void putFile() {
+		UserStore.StoredFile sf = new UserStore.StoredFile();
+		sf.name = "novo-" + (n % 64) + ".bin";
+		sf.size = 4096;
+		sf.ts = n;
+		sf.sha256 = String.format("%064x", n++);
+		store.putFile("user" + (n % users), sf);
+	}
+}
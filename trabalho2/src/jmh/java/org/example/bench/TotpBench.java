@@ -0,0 +1,36 @@
+package org.example.bench;
+
+import org.example.server.TotpService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Verificação TOTP com código errado (o caminho que sempre percorre as três janelas). */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TotpBench {
+	private TotpService totp;
+	private String secret;
+
+	@Setup
+	public void setup() {
+		totp = new TotpService("bench");
+		secret = totp.newSecret();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean verify() {
+		return totp.verify("bench", secret, "123456");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean verifyContended() {
+		return totp.verify("bench", secret, "123456");
+	}
+}
@@ -0,0 +1,296 @@
+package org.example.client;
+
+import org.example.common.CryptoUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Upload/download de muitos arquivos em paralelo: cifra/decifra num pool de
+ * {@code workers} threads e mantém até {@code inFlight} requisições abertas no mesmo HttpClient.
+ * O semáforo segura os workers quando a rede não acompanha, então no máximo
+ * {@code workers + inFlight} temporários existem ao mesmo tempo.
+ */
+final class BatchTransfer {
+	/**
+	 * {@code saved}: bytes que a compressão tirou do ciphertext (plaintext - blob) nos arquivos que deram
+	 * certo; um incompressível, que cresce com o cabeçalho e a tag, conta 0.
+	 */
+	record Result(int ok, List<String> failed, long bytes, long saved, double seconds) {
+	}
+
+	private record Encrypted(Path tmp, long plain) {
+	}
+
+	private final Http http;
+	private final DeltaSync delta;
+	private final byte[] key;
+	private final byte[] aad;
+	private final int workers;
+	private final Semaphore inFlight;
+	private final AtomicLong saved = new AtomicLong();
+
+	/** @param delta para baixar os arquivos que foram enviados por delta sync */
+	BatchTransfer(Http http, DeltaSync delta, byte[] key, byte[] aad, int workers, int inFlight) {
+		this.http = http;
+		this.delta = delta;
+		this.key = key;
+		this.aad = aad;
+		this.workers = workers;
+		this.inFlight = new Semaphore(inFlight);
+	}
+
+	/** "dir" (recursivo), "dir/*.log", "dir/**&#47;*.csv" ou um arquivo só. Nome no servidor = caminho relativo com '/'. */
+	static Map<String, Path> expand(String spec) throws IOException {
+		Path p = Paths.get(spec);
+		Map<String, Path> out = new TreeMap<>();
+		if (Files.isRegularFile(p)) {
+			out.put(p.getFileName().toString(), p);
+			return out;
+		}
+		Path base = p;
+		PathMatcher m = null;
+		if (!Files.isDirectory(p)) {
+			// base = segmentos antes do primeiro com curinga
+			base = p.isAbsolute() ? p.getRoot() : Paths.get("");
+			int i = 0;
+			for (; i < p.getNameCount(); i++) {
+				String seg = p.getName(i).toString();
+				if (seg.matches(".*[*?\\[{].*"))
+					break;
+				base = base.resolve(seg);
+			}
+			if (i == p.getNameCount())
+				throw new NoSuchFileException(spec);
+			m = FileSystems.getDefault().getPathMatcher("glob:" + p.subpath(i, p.getNameCount()));
+		}
+		Path root = base.toString().isEmpty() ? Paths.get(".") : base;
+		PathMatcher fm = m;
+		try (Stream<Path> s = Files.walk(root)) {
+			s.filter(Files::isRegularFile).forEach(f -> {
+				Path rel = root.relativize(f);
+				if (fm == null || fm.matches(rel))
+					out.put(rel.toString().replace('\\', '/'), f);
+			});
+		}
+		return out;
+	}
+
+	Result upload(Map<String, Path> files) throws InterruptedException {
+		Progress prog = new Progress("upload", files.size());
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<String> failed = Collections.synchronizedList(new ArrayList<>());
+		List<CompletableFuture<?>> all = new ArrayList<>();
+		try {
+			for (Map.Entry<String, Path> e : files.entrySet()) {
+				String name = e.getKey();
+				all.add(CompletableFuture.supplyAsync(() -> encryptToTemp(e.getValue()), pool)
+						.thenCompose(enc -> send(name, enc))
+						.whenComplete((size, err) -> {
+							if (err != null)
+								failed.add(name + ": " + rootCause(err).getMessage());
+							else
+								prog.done(size);
+						}));
+			}
+			CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).exceptionally(x -> null).join();
+		} finally {
+			pool.shutdown();
+			prog.stop();
+		}
+		return new Result(files.size() - failed.size(), failed, prog.bytes.get(), saved.getAndSet(0), prog.seconds());
+	}
+
+	private Encrypted encryptToTemp(Path src) {
+		Path tmp = null;
+		Encrypted enc = null;
+		try {
+			tmp = Files.createTempFile("batch-", ".bin");
+			long plain;
+			try (var in = Files.newInputStream(src); var out = Files.newOutputStream(tmp)) {
+				plain = CryptoUtils.encryptStream(key, in, out, aad);
+			}
+			// segura o worker aqui: só cifra o próximo quando houver vaga para enviar
+			inFlight.acquire();
+			enc = new Encrypted(tmp, plain);
+			return enc;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		} finally {
+			// entregue ao send, o temporário é dele; em qualquer falha antes disso a cópia cifrada sai daqui
+			if (enc == null && tmp != null)
+				deleteQuietly(tmp);
+		}
+	}
+
+	private CompletableFuture<Long> send(String name, Encrypted enc) {
+		Path tmp = enc.tmp();
+		CompletableFuture<HttpResponse<String>> f;
+		long size;
+		try {
+			size = Files.size(tmp);
+			f = http.postFileAsync("/upload/" + URLEncoder.encode(name, StandardCharsets.UTF_8), tmp);
+		} catch (IOException e) {
+			inFlight.release();
+			deleteQuietly(tmp);
+			return CompletableFuture.failedFuture(e);
+		}
+		return f.handle((r, err) -> {
+			inFlight.release();
+			deleteQuietly(tmp);
+			if (err != null)
+				throw new CompletionException(err);
+			if (r.statusCode() / 100 != 2)
+				throw new CompletionException(new Http.StatusException(r.statusCode(), r.body()));
+			saved.addAndGet(Math.max(0, enc.plain() - size));
+			return size;
+		});
+	}
+
+	Result download(List<String> names, Path outDir) throws InterruptedException, IOException {
+		Progress prog = new Progress("download", names.size());
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<String> failed = Collections.synchronizedList(new ArrayList<>());
+		List<CompletableFuture<?>> all = new ArrayList<>();
+		Path root = outDir.toAbsolutePath().normalize();
+		Files.createDirectories(root);
+		try {
+			for (String name : names) {
+				Path out = root.resolve(name).normalize();
+				if (!out.startsWith(root) || out.equals(root)) {
+					failed.add(name + ": nome invalido");
+					continue;
+				}
+				inFlight.acquire(); // liberado depois de decifrar, limitando os .blob em disco
+				Path blob;
+				try {
+					blob = Files.createTempFile(root, "batch-", ".blob");
+				} catch (IOException e) {
+					inFlight.release();
+					throw e;
+				}
+				all.add(http.getAsync("/download/" + URLEncoder.encode(name, StandardCharsets.UTF_8),
+						HttpResponse.BodyHandlers.ofFile(blob))
+						.thenApplyAsync(r -> {
+							// 409: enviado por delta sync, remonta a partir do manifesto como no download avulso
+							if (r.statusCode() == 409)
+								return viaDelta(name, out);
+							if (r.statusCode() / 100 != 2)
+								throw new CompletionException(new Http.StatusException(r.statusCode(), ""));
+							return decrypt(blob, out);
+						}, pool)
+						.whenComplete((size, err) -> {
+							inFlight.release();
+							deleteQuietly(blob);
+							if (err != null)
+								failed.add(name + ": " + rootCause(err).getMessage());
+							else
+								prog.done(size);
+						}));
+			}
+			CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).exceptionally(x -> null).join();
+		} finally {
+			pool.shutdown();
+			prog.stop();
+		}
+		return new Result(names.size() - failed.size(), failed, prog.bytes.get(), saved.getAndSet(0), prog.seconds());
+	}
+
+	private long decrypt(Path blob, Path out) {
+		try {
+			Files.createDirectories(out.getParent());
+			Path part = Files.createTempFile(out.getParent(), "batch-", ".part");
+			try {
+				try (var in = Files.newInputStream(blob); var os = Files.newOutputStream(part)) {
+					long plain = CryptoUtils.decryptStream(key, in, os, aad);
+					saved.addAndGet(Math.max(0, plain - Files.size(blob)));
+				}
+				Files.move(part, out, StandardCopyOption.REPLACE_EXISTING);
+				return Files.size(out);
+			} finally {
+				deleteQuietly(part);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private long viaDelta(String name, Path out) {
+		try {
+			Files.createDirectories(out.getParent());
+			delta.download(name, out);
+			return Files.size(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		}
+	}
+
+	private static void deleteQuietly(Path p) {
+		try {
+			Files.deleteIfExists(p);
+		} catch (IOException ignored) {
+		}
+	}
+
+	private static Throwable rootCause(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof UncheckedIOException) && t.getCause() != null)
+			t = t.getCause();
+		return t;
+	}
+
+	// imprime o andamento a cada segundo numa linha só
+	private static final class Progress {
+		final String what;
+		final int total;
+		final AtomicInteger files = new AtomicInteger();
+		final AtomicLong bytes = new AtomicLong();
+		final long t0 = System.nanoTime();
+		final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "progress");
+			t.setDaemon(true);
+			return t;
+		});
+
+		Progress(String what, int total) {
+			this.what = what;
+			this.total = total;
+			timer.scheduleAtFixedRate(this::print, 1, 1, TimeUnit.SECONDS);
+		}
+
+		void done(long size) {
+			files.incrementAndGet();
+			bytes.addAndGet(size);
+		}
+
+		double seconds() {
+			return (System.nanoTime() - t0) / 1e9;
+		}
+
+		void print() {
+			double s = seconds();
+			System.out.printf("\r%s: %d/%d arquivos, %.1f MB, %.1f MB/s   ", what, files.get(), total,
+					bytes.get() / 1048576.0, bytes.get() / 1048576.0 / Math.max(s, 1e-3));
+		}
+
+		void stop() {
+			timer.shutdownNow();
+			print();
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.example.client;
+
+import org.example.common.CryptoUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Cache em disco do ciphertext baixado, por usuário + nome, com o ETag da versão ao lado. Num
+ * download repetido o cliente manda If-None-Match e, com 304, decifra a cópia local. Só guarda
+ * ciphertext, e os nomes no disco são hashes. Limitado em bytes: passou do teto, saem os menos
+ * usados (mtime, que um acerto renova).
+ */
+final class BlobCache {
+	record Entry(Path blob, String etag) {
+	}
+
+	private final Path dir;
+	private final long maxBytes;
+
+	BlobCache(Path dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/** {@code client.cacheDir} (padrão "client-cache") e {@code client.cacheBytes} (padrão 256 MiB; 0 desliga). */
+	static BlobCache fromSystemProperties() {
+		return new BlobCache(Path.of(System.getProperty("client.cacheDir", "client-cache")),
+				Long.getLong("client.cacheBytes", 256L << 20));
+	}
+
+	boolean enabled() {
+		return maxBytes > 0;
+	}
+
+	/** Cópia guardada de {@code name}, ou null. */
+	synchronized Entry get(String user, String name) throws IOException {
+		if (!enabled())
+			return null;
+		String k = key(user, name);
+		Path blob = dir.resolve(k + ".blob"), etag = dir.resolve(k + ".etag");
+		if (!Files.exists(blob) || !Files.exists(etag))
+			return null;
+		Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+		return new Entry(blob, Files.readString(etag, StandardCharsets.US_ASCII));
+	}
+
+	/** Move {@code blob} (já conferido) para o cache como a versão {@code etag}. */
+	synchronized void put(String user, String name, String etag, Path blob) throws IOException {
+		if (!enabled() || etag == null || Files.size(blob) > maxBytes)
+			return;
+		Files.createDirectories(dir);
+		String k = key(user, name);
+		Path dst = dir.resolve(k + ".blob"), et = dir.resolve(k + ".etag");
+		// sem o .etag a entrada não existe: some antes e volta por último
+		Files.deleteIfExists(et);
+		Files.move(blob, dst, StandardCopyOption.REPLACE_EXISTING);
+		Files.setLastModifiedTime(dst, FileTime.fromMillis(System.currentTimeMillis()));
+		Files.writeString(et, etag, StandardCharsets.US_ASCII);
+		trim(dst);
+	}
+
+	synchronized void remove(String user, String name) throws IOException {
+		String k = key(user, name);
+		Files.deleteIfExists(dir.resolve(k + ".etag"));
+		Files.deleteIfExists(dir.resolve(k + ".blob"));
+	}
+
+	private void trim(Path keep) throws IOException {
+		List<Path> blobs = new ArrayList<>();
+		long total = 0;
+		try (Stream<Path> s = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) s::iterator)
+				if (p.getFileName().toString().endsWith(".blob")) {
+					blobs.add(p);
+					total += Files.size(p);
+				}
+		}
+		if (total <= maxBytes)
+			return;
+		blobs.sort(Comparator.comparingLong(p -> {
+			try {
+				return Files.getLastModifiedTime(p).toMillis();
+			} catch (IOException e) {
+				return 0L;
+			}
+		}));
+		for (Path p : blobs) {
+			if (total <= maxBytes)
+				break;
+			if (p.equals(keep))
+				continue;
+			String f = p.getFileName().toString();
+			total -= Files.size(p);
+			Files.deleteIfExists(dir.resolve(f.substring(0, f.length() - 5) + ".etag"));
+			Files.deleteIfExists(p);
+		}
+	}
+
+	private static String key(String user, String name) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(user.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			md.update(name.getBytes(StandardCharsets.UTF_8));
+			return CryptoUtils.toHex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,17 +1,25 @@
 package org.example.client;
 
-import com.google.gson.Gson;
-
 import org.example.common.ApiModels.*;
 import org.example.common.CryptoUtils;
+import org.example.common.Json;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 
 public final class Client {
 	private static final Scanner in = new Scanner(System.in);
-	private static final Gson gson = new Gson();
+	// a partir deste tamanho (bytes de ciphertext) o upload é retomável
+	private static final long RESUME_MIN = Long.getLong("client.resumeMin", 4 << 20);
+	// falhas de rede seguidas, sem progresso, antes de desistir de um upload/download
+	private static final int RETRIES = Integer.getInteger("client.retries", 5);
+	private static final BlobCache cache = BlobCache.fromSystemProperties();
+	// opções que mandam o token: só nelas um 401 quer dizer sessão expirada (no login é senha ou código errado)
+	private static final Set<String> SESSION_OPS = Set.of("3", "4", "5", "6", "7", "8", "9");
 
 	public static void main(String[] args) {
 		String base = System.getProperty("server", "http://localhost:8080");
@@ -19,7 +27,7 @@ public final class Client {
 		System.out.println("Cliente conectado a: " + base);
 
 		while (true) {
-			System.out.println("\n[1] Cadastrar [2] Login+TOTP [3] Upload cifrado [4] Download+decifra [0] Sair");
+			System.out.println("\n[1] Cadastrar [2] Login+TOTP [3] Upload cifrado [4] Download+decifra [5] Logout\n[6] Upload em lote [7] Download em lote [8] Upload delta sync [9] Listar arquivos [0] Sair");
 			System.out.print("> ");
 			String op = in.nextLine().trim();
 			try {
@@ -28,11 +36,26 @@ public final class Client {
 				case "2" -> loginTotp(http);
 				case "3" -> upload(http);
 				case "4" -> download(http);
+				case "5" -> logout(http);
+				case "6" -> uploadBatch(http);
+				case "7" -> downloadBatch(http);
+				case "8" -> uploadDelta(http);
+				case "9" -> listFiles(http);
 				case "0" -> {
+					Session.clear();
 					return;
 				}
 				default -> System.out.println("Opcao invalida");
 				}
+			} catch (Http.StatusException e) {
+				if (e.status() == 401 && Session.user != null && SESSION_OPS.contains(op)) {
+					// sessão expirou no servidor: a chave derivada não deve sobreviver a ela
+					Session.clear();
+					http.setToken(null);
+					System.out.println("Sessao expirada, faça login + TOTP de novo");
+				} else {
+					System.out.println("Erro: " + e.getMessage());
+				}
 			} catch (Exception e) {
 				System.out.println("Erro: " + e.getMessage());
 			}
@@ -44,9 +67,7 @@ public final class Client {
 		String u = in.nextLine();
 		System.out.print("Senha: ");
 		String p = (System.console() != null) ? new String(System.console().readPassword()) : in.nextLine();
-		String body = gson.toJson(new RegisterReq(u, p));
-		String resp = http.post("/register", body);
-		RegisterResp r = gson.fromJson(resp, RegisterResp.class);
+		RegisterResp r = http.post("/register", new RegisterReq(u, p), RegisterResp.class);
 		System.out.println("Cadastrado. Escaneie o QR no app TOTP.");
 
 		// Salva PNG em arquivo
@@ -63,22 +84,21 @@ public final class Client {
 		String u = in.nextLine();
 		System.out.print("Senha: ");
 		String p = (System.console() != null) ? new String(System.console().readPassword()) : in.nextLine();
-		String r1 = http.post("/login", gson.toJson(new LoginReq(u, p)));
-		LoginResp L = gson.fromJson(r1, LoginResp.class);
+		LoginResp L = http.post("/login", new LoginReq(u, p), LoginResp.class);
 		if (!L.ok()) {
 			System.out.println(L.message());
 			return;
 		}
 		System.out.print("Codigo TOTP: ");
 		String code = in.nextLine().trim();
-		String r2 = http.post("/verify-totp", gson.toJson(new TotpReq(u, code)));
-		TotpResp T = gson.fromJson(r2, TotpResp.class);
+		TotpResp T = http.post("/verify-totp", new TotpReq(u, code), TotpResp.class);
 		if (!T.ok()) {
 			System.out.println(T.message());
 			return;
 		}
 		http.setToken(T.sessionToken());
 		// Guarda sal e params em memória desta execução
+		Session.clear();
 		Session.kdf = L.kdf();
 		Session.N = L.N();
 		Session.r = L.r();
@@ -86,39 +106,304 @@ public final class Client {
 		Session.dkLen = L.dkLen();
 		Session.salt = Base64.getDecoder().decode(L.saltB64());
 		Session.user = u;
+		if (Session.CACHE_KEY) {
+			// deriva uma vez aqui; upload/download reaproveitam em vez de rodar scrypt a cada arquivo
+			Session.key = deriveKey(p);
+			Session.touch();
+		}
 		System.out.println("Autenticado. Sessao=" + T.sessionToken());
 	}
 
+	private static void logout(Http http) throws Exception {
+		mustAuth();
+		try {
+			http.post("/logout", "{}");
+		} finally {
+			Session.clear();
+			http.setToken(null);
+		}
+		System.out.println("Sessao encerrada");
+	}
+
 	private static void upload(Http http) throws Exception {
 		mustAuth();
 		System.out.print("Arquivo plaintext: ");
 		Path inFile = Paths.get(in.nextLine());
-		System.out.print("Senha (para derivar chave): ");
-		String p = (System.console() != null) ? new String(System.console().readPassword()) : in.nextLine();
-		byte[] plain = Files.readAllBytes(inFile);
 
-		byte[] key = deriveKey(p);
-		byte[] blob = org.example.common.CryptoUtils.encryptAesGcm(key, plain, Session.user.getBytes());
-		String b64 = Base64.getEncoder().encodeToString(blob);
-		http.post("/upload", gson.toJson(new UploadReq(inFile.getFileName().toString(), b64)));
-		System.out.println("Enviado (cifrado). Tamanho= " + blob.length + " bytes");
+		byte[] key = sessionKey();
+		// cifra em streaming (blob v2) para um temporário e envia o arquivo cru, sem base64
+		Path tmp = Files.createTempFile("upload-", ".bin");
+		try {
+			long plain;
+			try (var src = Files.newInputStream(inFile); var dst = Files.newOutputStream(tmp)) {
+				plain = CryptoUtils.encryptStream(key, src, dst, Session.user.getBytes());
+			}
+			String name = inFile.getFileName().toString();
+			long size = Files.size(tmp);
+			if (size < RESUME_MIN)
+				http.postFile("/upload/" + URLEncoder.encode(name, StandardCharsets.UTF_8), tmp);
+			else
+				uploadResumable(http, name, tmp, size);
+			System.out.println("Enviado (cifrado). Tamanho= " + size + " bytes" + saved(plain, size));
+		} finally {
+			releaseKey(key);
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	// depois de uma queda pergunta ao servidor o offset confirmado e manda só o resto
+	private static void uploadResumable(Http http, String name, Path file, long size) throws Exception {
+		UploadStatus st = Json.read(http.post("/uploads?filename=" + URLEncoder.encode(name, StandardCharsets.UTF_8)
+				+ "&size=" + size, "{}"), UploadStatus.class);
+		String path = "/uploads/" + st.uploadId();
+		long confirmed = 0;
+		int fails = 0;
+		while (!st.done()) {
+			try {
+				if (fails > 0) {
+					st = http.get(path, UploadStatus.class);
+					if (st.offset() > confirmed)
+						fails = 1;
+					confirmed = st.offset();
+					if (st.done())
+						break;
+				}
+				st = Json.read(http.putFrom(path, file, st.offset()), UploadStatus.class);
+				fails = 0;
+			} catch (IOException e) {
+				// 409: outro PUT ainda ativo ou offset divergente; os dois se resolvem consultando de novo
+				if ((e instanceof Http.StatusException se && se.status() != 409) || ++fails > RETRIES)
+					throw e;
+				backoff(fails, e);
+			}
+		}
 	}
 
 	private static void download(Http http) throws Exception {
 		mustAuth();
 		System.out.print("Nome do arquivo no servidor: ");
-		String name = in.nextLine();
-		String resp = http.get("/download?filename=" + URLEncoder.encode(name, java.nio.charset.StandardCharsets.UTF_8));
-		DownloadResp r = gson.fromJson(resp, DownloadResp.class);
+		download(http, in.nextLine());
+	}
+
+	private static void download(Http http, String name) throws Exception {
+		Path out = Paths.get("decifrado-" + name);
+		// ciphertext parcial + ETag da versão: sobrevivem a uma queda para o próximo download continuar
+		Path blob = Paths.get(out + ".blob");
+		Path etagFile = Paths.get(out + ".etag");
+		if (!Files.exists(etagFile))
+			Files.deleteIfExists(blob);
+		String path = "/download/" + URLEncoder.encode(name, StandardCharsets.UTF_8);
+		// com cópia em cache (e nada pela metade) o pedido é condicional: 304 decifra a cópia local
+		BlobCache.Entry hit = Files.exists(blob) ? null : cache.get(Session.user, name);
+		Path src = blob;
+		int fails = 0;
+		while (true) {
+			long before = Files.exists(blob) ? Files.size(blob) : 0;
+			String etag = Files.exists(etagFile) ? Files.readString(etagFile) : null;
+			try {
+				if (http.getResume(path, blob, etag, hit == null ? null : hit.etag(),
+						ri -> ri.headers().firstValue("ETag").ifPresent(t -> {
+							try {
+								Files.writeString(etagFile, t);
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						})) == null)
+					src = hit.blob();
+				break;
+			} catch (Http.StatusException e) {
+				Files.deleteIfExists(blob);
+				Files.deleteIfExists(etagFile);
+				if (e.status() == 409) {
+					// enviado por delta sync: remonta a partir do manifesto
+					downloadDelta(http, name, out);
+					return;
+				}
+				throw e;
+			} catch (IOException e) {
+				if (Files.exists(blob) && Files.size(blob) > before)
+					fails = 0;
+				if (++fails > RETRIES) {
+					System.out.println("Download interrompido em " + (Files.exists(blob) ? Files.size(blob) : 0)
+							+ " bytes; repita para continuar de onde parou");
+					throw e;
+				}
+				backoff(fails, e);
+			}
+		}
+		// só aparece em "out" depois de todas as tags conferirem
+		Path tmp = Files.createTempFile(out.toAbsolutePath().getParent(), "download-", ".part");
+		boolean stale = false;
+		try {
+			byte[] key = sessionKey();
+			long plain = 0;
+			try (var in = Files.newInputStream(src); var dst = Files.newOutputStream(tmp)) {
+				plain = CryptoUtils.decryptStream(key, in, dst, Session.user.getBytes());
+			} catch (IOException | RuntimeException e) {
+				if (src == blob)
+					throw e;
+				// cópia local estragada: sai do cache e baixa de novo, agora sem If-None-Match
+				cache.remove(Session.user, name);
+				System.out.println("Cache invalido (" + e.getMessage() + "), baixando de novo");
+				stale = true;
+			} finally {
+				releaseKey(key);
+			}
+			if (!stale) {
+				long size = Files.size(src);
+				Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+				if (src == blob)
+					cache.put(Session.user, name, Files.exists(etagFile) ? Files.readString(etagFile) : null, blob);
+				System.out.println("Decifrado em: " + out.toAbsolutePath() + saved(plain, size)
+						+ (src == blob ? "" : " (cache, 304)"));
+			}
+		} finally {
+			// decifrado ou corrompido, o parcial não serve mais
+			Files.deleteIfExists(blob);
+			Files.deleteIfExists(etagFile);
+			Files.deleteIfExists(tmp);
+		}
+		if (stale)
+			download(http, name);
+	}
+
+	private static void listFiles(Http http) throws Exception {
+		mustAuth();
+		System.out.print("Prefixo (vazio = todos): ");
+		String prefix = in.nextLine().trim();
+		System.out.print("Ordem [name|ts|size, - no fim = decrescente]: ");
+		String sort = in.nextLine().trim();
+		String order = sort.endsWith("-") ? "desc" : "asc";
+		sort = sort.isEmpty() || sort.equals("-") ? "name" : sort.replace("-", "");
+		String cursor = null;
+		do {
+			String q = "/files?prefix=" + URLEncoder.encode(prefix, StandardCharsets.UTF_8) + "&sort=" + sort + "&order="
+					+ order + (cursor == null ? "" : "&cursor=" + cursor);
+			FileList page = http.get(q, FileList.class);
+			for (FileInfo f : page.files())
+				System.out.printf("%-40s %12d  %tF %<tT%s%n", f.name(), f.size(), f.ts(), f.chunked() ? "  (chunks)" : "");
+			cursor = page.nextCursor();
+			if (cursor != null) {
+				System.out.print("Mais? (s/n): ");
+				if (!in.nextLine().trim().equalsIgnoreCase("s"))
+					break;
+			}
+		} while (cursor != null);
+	}
+
+	private static DeltaSync delta(Http http, byte[] key) {
+		return new DeltaSync(http, key, Session.user, Integer.getInteger("client.inFlight", 8));
+	}
+
+	private static void uploadDelta(Http http) throws Exception {
+		mustAuth();
+		System.out.print("Arquivo plaintext: ");
+		Path inFile = Paths.get(in.nextLine());
+		byte[] key = sessionKey();
+		try {
+			DeltaSync.Stats st = delta(http, key).upload(inFile.getFileName().toString(), inFile);
+			System.out.printf("Sincronizado: %d chunks, %d enviados, %d bytes de ciphertext para %d de plaintext%n",
+					st.chunks(), st.sent(), st.sentBytes(), st.plainBytes());
+		} finally {
+			releaseKey(key);
+		}
+	}
+
+	private static void downloadDelta(Http http, String name, Path out) throws Exception {
+		byte[] key = sessionKey();
+		try {
+			DeltaSync.Stats st = delta(http, key).download(name, out);
+			System.out.println("Decifrado em: " + out.toAbsolutePath() + " (" + st.chunks() + " chunks)"
+					+ saved(st.plainBytes(), st.sentBytes()));
+		} finally {
+			releaseKey(key);
+		}
+	}
+
+	// quanto a compressão (blob v3) tirou do que trafega e fica no disco do servidor
+	private static String saved(long plain, long blob) {
+		if (blob >= plain)
+			return "";
+		return String.format(" (plaintext %d bytes, compressao economizou %d bytes, %.1f%%)", plain, plain - blob,
+				100.0 * (plain - blob) / plain);
+	}
+
+	private static void backoff(int fails, IOException e) throws InterruptedException {
+		long ms = Math.min(30_000, 500L << fails);
+		System.out.println("Falha de rede (" + e.getMessage() + "), tentando de novo em " + ms + " ms");
+		Thread.sleep(ms);
+	}
+
+	private static BatchTransfer batch(Http http, byte[] key) {
+		int workers = Integer.getInteger("client.workers", Runtime.getRuntime().availableProcessors());
+		int inFlight = Integer.getInteger("client.inFlight", 8);
+		return new BatchTransfer(http, delta(http, key), key, Session.user.getBytes(), workers, inFlight);
+	}
+
+	private static void uploadBatch(Http http) throws Exception {
+		mustAuth();
+		System.out.print("Diretorio ou glob (ex.: docs/*.csv): ");
+		Map<String, Path> files = BatchTransfer.expand(in.nextLine().trim());
+		if (files.isEmpty()) {
+			System.out.println("Nenhum arquivo");
+			return;
+		}
+		byte[] key = sessionKey();
+		try {
+			report(batch(http, key).upload(files));
+		} finally {
+			releaseKey(key);
+		}
+	}
+
+	private static void downloadBatch(Http http) throws Exception {
+		mustAuth();
+		System.out.print("Nomes no servidor (separados por virgula, ou @lista.txt): ");
+		String spec = in.nextLine().trim();
+		List<String> names = new ArrayList<>();
+		for (String n : spec.startsWith("@") ? Files.readAllLines(Paths.get(spec.substring(1))) : List.of(spec.split(",")))
+			if (!n.isBlank())
+				names.add(n.trim());
+		System.out.print("Diretorio de saida: ");
+		Path outDir = Paths.get(in.nextLine().trim());
+		byte[] key = sessionKey();
+		try {
+			report(batch(http, key).download(names, outDir));
+		} finally {
+			releaseKey(key);
+		}
+	}
+
+	private static void report(BatchTransfer.Result r) {
+		System.out.printf("%d ok, %d com erro, %.1f MB em %.2f s (%.1f MB/s)%n", r.ok(), r.failed().size(),
+				r.bytes() / 1048576.0, r.seconds(), r.bytes() / 1048576.0 / Math.max(r.seconds(), 1e-3));
+		if (r.saved() > 0)
+			System.out.printf("Compressao economizou %.1f MB de ciphertext%n", r.saved() / 1048576.0);
+		for (String f : r.failed())
+			System.out.println("  erro: " + f);
+	}
+
+	// chave da sessão se estiver em cache; senão pede a senha e deriva (e guarda, se o cache estiver ligado)
+	private static byte[] sessionKey() {
+		if (Session.key != null && System.currentTimeMillis() < Session.keyExpiresAt) {
+			Session.touch();
+			return Session.key;
+		}
+		Session.clearKey();
 		System.out.print("Senha (para derivar chave): ");
 		String p = (System.console() != null) ? new String(System.console().readPassword()) : in.nextLine();
-
 		byte[] key = deriveKey(p);
-		byte[] blob = Base64.getDecoder().decode(r.dataB64());
-		byte[] plain = org.example.common.CryptoUtils.decryptAesGcm(key, blob, Session.user.getBytes());
-		Path out = Paths.get("decifrado-" + name);
-		Files.write(out, plain);
-		System.out.println("Decifrado em: " + out.toAbsolutePath());
+		if (Session.CACHE_KEY) {
+			Session.key = key;
+			Session.touch();
+		}
+		return key;
+	}
+
+	// no modo sem cache a chave é zerada logo depois de cada uso
+	private static void releaseKey(byte[] key) {
+		if (key != Session.key)
+			Arrays.fill(key, (byte) 0);
 	}
 
 	private static byte[] deriveKey(String password) {
@@ -135,8 +420,33 @@ public final class Client {
 
 	// guarda params KDF da sessão corrente (na memória)
 	static final class Session {
+		// -Dclient.keyCache=false: nunca guarda a chave, pede a senha a cada operação
+		static final boolean CACHE_KEY = Boolean.parseBoolean(System.getProperty("client.keyCache", "true"));
+		// inatividade (s) depois da qual a chave guardada é descartada
+		static final long KEY_TTL_MS = Long.getLong("client.keyTtl", 30 * 60) * 1000;
+
 		static String user, kdf;
 		static int N, r, p, dkLen;
 		static byte[] salt;
+		static byte[] key;
+		static long keyExpiresAt;
+
+		static void touch() {
+			keyExpiresAt = System.currentTimeMillis() + KEY_TTL_MS;
+		}
+
+		static void clearKey() {
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			key = null;
+			keyExpiresAt = 0;
+		}
+
+		static void clear() {
+			clearKey();
+			user = null;
+			kdf = null;
+			salt = null;
+		}
 	}
 }
@@ -0,0 +1,178 @@
+package org.example.client;
+
+import org.example.common.ApiModels.*;
+import org.example.common.Chunker;
+import org.example.common.CryptoUtils;
+import org.example.common.Json;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Delta sync: o plaintext é cortado pelo {@link Chunker} e cada chunk, identificado por
+ * HMAC-SHA256(chave derivada, plaintext), é cifrado à parte. O servidor diz quais ids ainda não tem
+ * e só esses trafegam; o commit grava o manifesto (ids na ordem do arquivo) com um HMAC do cliente,
+ * conferido de volta no download. Um upload interrompido é retomado de graça: na próxima vez
+ * os chunks que chegaram já não aparecem como faltando.
+ */
+final class DeltaSync {
+	record Stats(int chunks, int sent, long plainBytes, long sentBytes) {
+	}
+
+	private final Http http;
+	private final byte[] key;
+	private final SecretKeySpec idKey;
+	private final String user;
+	private final int inFlight;
+
+	DeltaSync(Http http, byte[] key, String user, int inFlight) {
+		this.http = http;
+		this.key = key;
+		this.user = user;
+		this.inFlight = inFlight;
+		// ids com chave separada da de cifra: o servidor não consegue testar palpites de conteúdo
+		Mac m = hmac(new SecretKeySpec(key, "HmacSHA256"));
+		this.idKey = new SecretKeySpec(m.doFinal("delta-sync chunk id".getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+	}
+
+	Stats upload(String name, Path file) throws IOException, InterruptedException {
+		// 1ª passada só calcula os ids; a 2ª corta de novo (determinístico) e cifra só o que falta
+		List<String> ids = new ArrayList<>();
+		long plain = 0;
+		Mac mac = hmac(idKey);
+		try (InputStream in = Files.newInputStream(file)) {
+			Chunker ch = new Chunker(in);
+			for (byte[] b; (b = ch.next()) != null;) {
+				ids.add(CryptoUtils.toHex(mac.doFinal(b)));
+				plain += b.length;
+			}
+		}
+		SyncMissingResp miss = http.post("/sync/missing", new SyncMissingReq(ids), SyncMissingResp.class);
+		int sentChunks = miss.missing().size();
+		long sent = send(file, new HashSet<>(miss.missing()));
+		String commit = Json.toJson(new SyncCommitReq(name, ids, manifestMac(name, ids)));
+		try {
+			http.post("/sync/commit", commit);
+		} catch (Http.StatusException e) {
+			if (e.status() != 409)
+				throw e;
+			// chunks perdidos no servidor entre o missing e o commit: manda de novo e tenta uma vez mais
+			miss = http.post("/sync/missing", new SyncMissingReq(ids), SyncMissingResp.class);
+			sentChunks += miss.missing().size();
+			sent += send(file, new HashSet<>(miss.missing()));
+			http.post("/sync/commit", commit);
+		}
+		return new Stats(ids.size(), sentChunks, plain, sent);
+	}
+
+	private long send(Path file, Set<String> missing) throws IOException, InterruptedException {
+		if (missing.isEmpty())
+			return 0;
+		Semaphore window = new Semaphore(inFlight);
+		List<CompletableFuture<HttpResponse<String>>> all = new ArrayList<>();
+		long sent = 0;
+		Mac mac = hmac(idKey);
+		try (InputStream in = Files.newInputStream(file)) {
+			Chunker ch = new Chunker(in);
+			for (byte[] b; (b = ch.next()) != null;) {
+				String id = CryptoUtils.toHex(mac.doFinal(b));
+				if (!missing.remove(id))
+					continue; // já no servidor, ou repetido dentro do próprio arquivo
+				ByteArrayOutputStream bo = new ByteArrayOutputStream(b.length + 64);
+				CryptoUtils.encryptStream(key, new ByteArrayInputStream(b), bo, aad(id));
+				byte[] blob = bo.toByteArray();
+				sent += blob.length;
+				window.acquire();
+				all.add(http.postBytesAsync("/sync/chunk/" + id, blob).whenComplete((r, e) -> window.release()));
+			}
+		}
+		for (CompletableFuture<HttpResponse<String>> f : all) {
+			HttpResponse<String> r = join(f);
+			if (r.statusCode() / 100 != 2)
+				throw new Http.StatusException(r.statusCode(), r.body());
+		}
+		if (!missing.isEmpty())
+			throw new IOException("arquivo mudou durante o envio");
+		return sent;
+	}
+
+	/** Baixa os chunks na ordem do manifesto (até {@code inFlight} em paralelo) e remonta em {@code out}. */
+	Stats download(String name, Path out) throws IOException, InterruptedException {
+		SyncManifest m = http.get("/sync/manifest/" + URLEncoder.encode(name, StandardCharsets.UTF_8),
+				SyncManifest.class);
+		if (!MessageDigest.isEqual(manifestMac(name, m.chunks()).getBytes(StandardCharsets.US_ASCII),
+				String.valueOf(m.mac()).getBytes(StandardCharsets.US_ASCII)))
+			throw new IOException("manifesto adulterado ou de outra chave");
+		Path tmp = Files.createTempFile(out.toAbsolutePath().getParent(), "delta-", ".part");
+		long plain = 0, got = 0;
+		Mac mac = hmac(idKey);
+		try {
+			Deque<CompletableFuture<HttpResponse<byte[]>>> window = new ArrayDeque<>();
+			int next = 0;
+			try (OutputStream os = Files.newOutputStream(tmp)) {
+				for (String id : m.chunks()) {
+					while (next < m.chunks().size() && window.size() < inFlight)
+						window.add(http.getAsync("/sync/chunk/" + m.chunks().get(next++),
+								HttpResponse.BodyHandlers.ofByteArray()));
+					HttpResponse<byte[]> r = join(window.poll());
+					if (r.statusCode() / 100 != 2)
+						throw new Http.StatusException(r.statusCode(), new String(r.body(), StandardCharsets.UTF_8));
+					byte[] b = CryptoUtils.decryptAesGcm(key, r.body(), aad(id));
+					if (!CryptoUtils.toHex(mac.doFinal(b)).equals(id))
+						throw new IOException("chunk " + id + " nao confere");
+					os.write(b);
+					plain += b.length;
+					got += r.body().length;
+				}
+			}
+			Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return new Stats(m.chunks().size(), m.chunks().size(), plain, got);
+	}
+
+	// o id na AAD prende o ciphertext ao chunk: o servidor não consegue trocar um pelo outro
+	private byte[] aad(String id) {
+		return (user + ":" + id).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private String manifestMac(String name, List<String> ids) {
+		Mac mac = hmac(idKey);
+		mac.update(name.getBytes(StandardCharsets.UTF_8));
+		mac.update((byte) 0);
+		for (String id : ids)
+			mac.update(id.getBytes(StandardCharsets.US_ASCII));
+		return CryptoUtils.toHex(mac.doFinal());
+	}
+
+	private static Mac hmac(SecretKeySpec k) {
+		try {
+			Mac m = Mac.getInstance("HmacSHA256");
+			m.init(k);
+			return m;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> f) throws IOException {
+		try {
+			return f.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException io)
+				throw io;
+			throw e;
+		}
+	}
+}
@@ -1,17 +1,49 @@
 package org.example.client;
 
+import org.example.common.Json;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public final class Http {
-	private final HttpClient hc = HttpClient.newHttpClient();
+	/** Resposta fora de 2xx; o status fica disponível para tratar 401/503 à parte. */
+	public static final class StatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		public StatusException(int status, String body) {
+			super("HTTP " + status + ": " + body);
+			this.status = status;
+		}
+
+		public int status() {
+			return status;
+		}
+	}
+
+	private final HttpClient hc;
 	private final String base;
-	private String token; // X-Session-Token
+	private volatile String token; // X-Session-Token
 
 	public Http(String base) {
+		this(HttpClient.newHttpClient(), base);
+	}
+
+	/** Compartilha o {@link HttpClient} (e o pool de conexões) entre várias instâncias, uma por usuário. */
+	public Http(HttpClient hc, String base) {
+		this.hc = hc;
 		this.base = base;
 	}
 
@@ -28,7 +60,7 @@ public final class Http {
 		HttpResponse<String> r = hc.send(b.build(), HttpResponse.BodyHandlers.ofString());
 		if (r.statusCode() >= 200 && r.statusCode() < 300)
 			return r.body();
-		throw new IOException("HTTP " + r.statusCode() + ": " + r.body());
+		throw new StatusException(r.statusCode(), r.body());
 	}
 
 	public String get(String path) throws IOException, InterruptedException {
@@ -38,6 +70,147 @@ public final class Http {
 		HttpResponse<String> r = hc.send(b.build(), HttpResponse.BodyHandlers.ofString());
 		if (r.statusCode() >= 200 && r.statusCode() < 300)
 			return r.body();
-		throw new IOException("HTTP " + r.statusCode() + ": " + r.body());
+		throw new StatusException(r.statusCode(), r.body());
+	}
+
+	/**
+	 * POST de {@code body} serializado pelo {@link Json}; a resposta é lida direto do stream para
+	 * {@code type}, sem passar por String.
+	 */
+	public <T> T post(String path, Object body, Class<T> type) throws IOException, InterruptedException {
+		return json(request(path).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(Json.toBytes(body))), type);
+	}
+
+	public <T> T get(String path, Class<T> type) throws IOException, InterruptedException {
+		return json(request(path).GET(), type);
+	}
+
+	private <T> T json(HttpRequest.Builder b, Class<T> type) throws IOException, InterruptedException {
+		HttpResponse<InputStream> r = hc.send(b.build(), HttpResponse.BodyHandlers.ofInputStream());
+		try (InputStream in = r.body()) {
+			if (r.statusCode() >= 200 && r.statusCode() < 300)
+				return Json.read(in, type);
+			throw new StatusException(r.statusCode(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+
+	/** Envia o arquivo como application/octet-stream, lido do disco em streaming. */
+	public String postFile(String path, Path file) throws IOException, InterruptedException {
+		HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(base + path))
+				.header("Content-Type", "application/octet-stream")
+				.POST(HttpRequest.BodyPublishers.ofFile(file));
+		if (token != null)
+			b.header("X-Session-Token", token);
+		HttpResponse<String> r = hc.send(b.build(), HttpResponse.BodyHandlers.ofString());
+		if (r.statusCode() >= 200 && r.statusCode() < 300)
+			return r.body();
+		throw new StatusException(r.statusCode(), r.body());
+	}
+
+	/** Grava o corpo da resposta direto em {@code dest}. */
+	public Path getFile(String path, Path dest) throws IOException, InterruptedException {
+		HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(base + path)).GET();
+		if (token != null)
+			b.header("X-Session-Token", token);
+		HttpResponse<Path> r = hc.send(b.build(), HttpResponse.BodyHandlers.ofFile(dest));
+		if (r.statusCode() >= 200 && r.statusCode() < 300)
+			return r.body();
+		// em erro o corpo é um JSON pequeno: lê para a mensagem e descarta o arquivo
+		String msg = Files.readString(dest);
+		Files.deleteIfExists(dest);
+		throw new StatusException(r.statusCode(), msg);
+	}
+
+	/**
+	 * Continua um download em {@code dest}: se o arquivo já tem bytes, pede só o restante com Range
+	 * e If-Range = {@code etag}. 206 anexa; 200 (versão nova no servidor, ou sem Range) sobrescreve.
+	 * {@code onHeaders} vê a resposta antes do corpo, para guardar o ETag mesmo se a conexão cair.
+	 * Sem parcial, {@code ifNoneMatch} (o ETag de uma cópia em cache) vai como If-None-Match.
+	 *
+	 * @return {@code dest}, ou null se o servidor respondeu 304 (a cópia em cache continua valendo)
+	 */
+	public Path getResume(String path, Path dest, String etag, String ifNoneMatch,
+			Consumer<HttpResponse.ResponseInfo> onHeaders) throws IOException, InterruptedException {
+		long offset = Files.exists(dest) ? Files.size(dest) : 0;
+		HttpRequest.Builder b = request(path).GET();
+		if (offset > 0) {
+			b.header("Range", "bytes=" + offset + "-");
+			if (etag != null)
+				b.header("If-Range", etag);
+		} else if (ifNoneMatch != null) {
+			b.header("If-None-Match", ifNoneMatch);
+		}
+		String[] err = new String[1];
+		HttpResponse<Path> r = hc.send(b.build(), ri -> {
+			onHeaders.accept(ri);
+			return switch (ri.statusCode()) {
+			case 206 -> HttpResponse.BodySubscribers.ofFile(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			case 200 -> HttpResponse.BodySubscribers.ofFile(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			default -> HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+					s -> {
+						err[0] = s;
+						return dest;
+					});
+			};
+		});
+		if (r.statusCode() == 304 && offset == 0 && ifNoneMatch != null)
+			return null;
+		// 416 com If-Range aceito: o que já temos é o arquivo inteiro
+		if (r.statusCode() == 200 || r.statusCode() == 206 || (r.statusCode() == 416 && offset > 0))
+			return dest;
+		throw new StatusException(r.statusCode(), err[0]);
+	}
+
+	/** PUT do trecho de {@code file} a partir de {@code offset}, com o header Upload-Offset. */
+	public String putFrom(String path, Path file, long offset) throws IOException, InterruptedException {
+		long len = Files.size(file) - offset;
+		HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.fromPublisher(
+				HttpRequest.BodyPublishers.ofInputStream(() -> {
+					try {
+						InputStream in = Files.newInputStream(file);
+						in.skipNBytes(offset);
+						return in;
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}), len);
+		HttpRequest req = request(path).header("Content-Type", "application/octet-stream")
+				.header("Upload-Offset", String.valueOf(offset)).PUT(body).build();
+		HttpResponse<String> r = hc.send(req, HttpResponse.BodyHandlers.ofString());
+		if (r.statusCode() >= 200 && r.statusCode() < 300)
+			return r.body();
+		throw new StatusException(r.statusCode(), r.body());
+	}
+
+	// variantes assíncronas: devolvem a resposta como veio, o status fica a cargo de quem chama
+
+	public CompletableFuture<HttpResponse<String>> postAsync(String path, String json) {
+		return hc.sendAsync(request(path).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(json)).build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	public CompletableFuture<HttpResponse<String>> postBytesAsync(String path, byte[] body) {
+		return hc.sendAsync(request(path).header("Content-Type", "application/octet-stream")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	public CompletableFuture<HttpResponse<String>> postFileAsync(String path, Path file) throws IOException {
+		return hc.sendAsync(request(path).header("Content-Type", "application/octet-stream")
+				.POST(HttpRequest.BodyPublishers.ofFile(file)).build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	public <T> CompletableFuture<HttpResponse<T>> getAsync(String path, HttpResponse.BodyHandler<T> handler) {
+		return hc.sendAsync(request(path).GET().build(), handler);
+	}
+
+	private HttpRequest.Builder request(String path) {
+		HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(base + path));
+		String t = token;
+		if (t != null)
+			b.header("X-Session-Token", t);
+		return b;
 	}
 }
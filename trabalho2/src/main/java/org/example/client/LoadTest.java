@@ -0,0 +1,199 @@
+package org.example.client;
+
+import org.example.common.ApiModels.*;
+import org.example.common.CryptoUtils;
+import org.example.common.Json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Gerador de carga sem interação: N usuários virtuais concorrentes fazem
+ * cadastro -> login -> TOTP (código calculado localmente a partir do segredo do /register)
+ * -> upload/download, tudo com {@code sendAsync}. No fim imprime vazão, percentis e taxa de erro por endpoint.
+ *
+ * <pre>
+ * java -Dserver=http://localhost:8080 -Dload.users=50 -Dload.iterations=10 \
+ *      -Dload.sizes=1024,1048576 -cp ... org.example.client.LoadTest
+ * </pre>
+ *
+ * Cada iteração faz login + upload + download; o TOTP só é verificado na primeira,
+ * porque o servidor recusa reusar o código do mesmo time step. Respostas 503 e 429 são
+ * repetidas depois do Retry-After, até {@code load.retries} vezes. Como todos os usuários saem do
+ * mesmo IP, rode o servidor com {@code -Drate.ip.burst=0} para medir o KDF e não o rate limit.
+ */
+public final class LoadTest {
+	private static final int RETRIES = Integer.getInteger("load.retries", 3);
+
+	static final class Stats {
+		final String name;
+		final LongAdder ok = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder retries = new LongAdder();
+		final Map<Integer, LongAdder> statuses = new ConcurrentSkipListMap<>();
+		private long[] lat = new long[1024];
+		private int n;
+
+		Stats(String name) {
+			this.name = name;
+		}
+
+		synchronized void latency(long nanos) {
+			if (n == lat.length)
+				lat = Arrays.copyOf(lat, n * 2);
+			lat[n++] = nanos;
+		}
+
+		synchronized long[] sorted() {
+			long[] a = Arrays.copyOf(lat, n);
+			Arrays.sort(a);
+			return a;
+		}
+	}
+
+	private static final Stats REGISTER = new Stats("/register");
+	private static final Stats LOGIN = new Stats("/login");
+	private static final Stats TOTP = new Stats("/verify-totp");
+	private static final Stats UPLOAD = new Stats("/upload");
+	private static final Stats DOWNLOAD = new Stats("/download");
+	private static final List<Stats> ALL = List.of(REGISTER, LOGIN, TOTP, UPLOAD, DOWNLOAD);
+
+	private final String base;
+	private final int users;
+	private final int iterations;
+	private final String password;
+	private final String prefix = "load-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+	private final byte[][] blobs;
+	private final HttpClient hc;
+	private final AtomicInteger failedUsers = new AtomicInteger();
+
+	LoadTest(String base, int users, int iterations, int[] sizes, String password) throws IOException {
+		this.base = base;
+		this.users = users;
+		this.iterations = iterations;
+		this.password = password;
+		this.hc = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+		// um blob v2 por tamanho, cifrado uma vez: o que se mede é o servidor, não o AES do cliente
+		byte[] key = CryptoUtils.rand(32);
+		this.blobs = new byte[sizes.length][];
+		for (int i = 0; i < sizes.length; i++) {
+			ByteArrayOutputStream bo = new ByteArrayOutputStream(sizes[i] + 64);
+			CryptoUtils.encryptStream(key, new ByteArrayInputStream(CryptoUtils.rand(sizes[i])), bo, null);
+			blobs[i] = bo.toByteArray();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String base = System.getProperty("server", "http://localhost:8080");
+		int users = Integer.getInteger("load.users", 10);
+		int iterations = Integer.getInteger("load.iterations", 5);
+		int[] sizes = Arrays.stream(System.getProperty("load.sizes", "1024,65536").split(","))
+				.mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+		String password = System.getProperty("load.password", "senha-de-carga");
+		System.out.println("Carga em " + base + ": " + users + " usuarios x " + iterations + " iteracoes, tamanhos="
+				+ Arrays.toString(sizes));
+		new LoadTest(base, users, iterations, sizes, password).run();
+	}
+
+	void run() {
+		long t0 = System.nanoTime();
+		CompletableFuture<?>[] all = new CompletableFuture<?>[users];
+		for (int i = 0; i < users; i++)
+			all[i] = user(i).exceptionally(e -> {
+				failedUsers.incrementAndGet();
+				return null;
+			});
+		CompletableFuture.allOf(all).join();
+		report((System.nanoTime() - t0) / 1e9);
+	}
+
+	private CompletableFuture<Void> user(int id) {
+		Http h = new Http(hc, base);
+		String name = prefix + id;
+		return timed(REGISTER, () -> h.postAsync("/register", Json.toJson(new RegisterReq(name, password))))
+				.thenCompose(r -> iteration(h, name, Json.read(r.body(), RegisterResp.class).secretBase32(), 0));
+	}
+
+	private CompletableFuture<Void> iteration(Http h, String name, String secret, int i) {
+		if (i == iterations)
+			return CompletableFuture.completedFuture(null);
+		CompletableFuture<?> auth = timed(LOGIN, () -> h.postAsync("/login", Json.toJson(new LoginReq(name, password))));
+		if (i == 0) {
+			auth = auth.thenCompose(r -> timed(TOTP, () -> {
+				String code = CryptoUtils.totpCode(secret, System.currentTimeMillis() / 1000);
+				return h.postAsync("/verify-totp", Json.toJson(new TotpReq(name, code)));
+			})).thenAccept(r -> h.setToken(Json.read(r.body(), TotpResp.class).sessionToken()));
+		}
+		byte[] blob = blobs[i % blobs.length];
+		String path = URLEncoder.encode("carga-" + i + ".bin", StandardCharsets.UTF_8);
+		return auth.thenCompose(x -> timed(UPLOAD, () -> h.postBytesAsync("/upload/" + path, blob)))
+				.thenAccept(x -> UPLOAD.bytes.add(blob.length))
+				.thenCompose(x -> timed(DOWNLOAD, () -> h.getAsync("/download/" + path, HttpResponse.BodyHandlers.ofByteArray())))
+				.thenAccept(r -> {
+					DOWNLOAD.bytes.add(r.body().length);
+					if (r.body().length != blob.length)
+						throw new CompletionException(new IOException("download com tamanho errado"));
+				})
+				.thenCompose(x -> iteration(h, name, secret, i + 1));
+	}
+
+	// registra latência e status de cada tentativa; 503/429 esperam o Retry-After, outro erro interrompe este usuário
+	private static <T> CompletableFuture<HttpResponse<T>> timed(Stats s, Supplier<CompletableFuture<HttpResponse<T>>> req) {
+		return attempt(s, req, 0);
+	}
+
+	private static <T> CompletableFuture<HttpResponse<T>> attempt(Stats s, Supplier<CompletableFuture<HttpResponse<T>>> req,
+			int tries) {
+		long t0 = System.nanoTime();
+		return req.get().handle((r, e) -> {
+			s.latency(System.nanoTime() - t0);
+			int code = r == null ? 0 : r.statusCode();
+			s.statuses.computeIfAbsent(code, k -> new LongAdder()).increment();
+			if ((code == 503 || code == 429) && tries < RETRIES) {
+				s.retries.increment();
+				long wait = r.headers().firstValueAsLong("Retry-After").orElse(1);
+				Executor later = CompletableFuture.delayedExecutor(wait, TimeUnit.SECONDS);
+				return CompletableFuture.supplyAsync(() -> null, later).thenCompose(x -> attempt(s, req, tries + 1));
+			}
+			if (e != null || code < 200 || code >= 300) {
+				s.errors.increment();
+				throw new CompletionException(e != null ? e : new IOException(s.name + " HTTP " + code));
+			}
+			s.ok.increment();
+			return CompletableFuture.completedFuture(r);
+		}).thenCompose(f -> f);
+	}
+
+	private void report(double secs) {
+		System.out.printf("%nDuracao: %.2f s, usuarios com falha: %d/%d%n%n", secs, failedUsers.get(), users);
+		System.out.printf("%-14s %8s %8s %8s %7s %9s %9s %9s %9s %9s %10s  %s%n", "endpoint", "ok", "erros", "retries", "erro%",
+				"req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "MB/s", "status");
+		for (Stats s : ALL) {
+			long[] a = s.sorted();
+			long ok = s.ok.sum(), err = s.errors.sum();
+			System.out.printf("%-14s %8d %8d %8d %6.2f%% %9.1f %9.2f %9.2f %9.2f %9.2f %10.2f  %s%n", s.name, ok, err,
+					s.retries.sum(),
+					ok + err == 0 ? 0.0 : 100.0 * err / (ok + err), (ok + err) / secs, pct(a, 0.5), pct(a, 0.9),
+					pct(a, 0.99), a.length == 0 ? 0.0 : a[a.length - 1] / 1e6, s.bytes.sum() / secs / (1 << 20),
+					s.statuses);
+		}
+	}
+
+	private static double pct(long[] sorted, double q) {
+		if (sorted.length == 0)
+			return 0;
+		int i = (int) Math.min(sorted.length - 1, Math.ceil(q * sorted.length) - 1);
+		return sorted[Math.max(0, i)] / 1e6;
+	}
+}
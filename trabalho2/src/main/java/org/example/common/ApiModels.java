@@ -1,5 +1,6 @@
 package org.example.common;
 
+import java.util.List;
 
 public final class ApiModels {
 	// Requests
@@ -29,4 +30,27 @@ public final class ApiModels {
 
 	public record DownloadResp(String filename, String dataB64) {
 	}
+
+	// upload retomável: offset = bytes já confirmados pelo servidor
+	public record UploadStatus(String uploadId, long offset, long size, boolean done) {
+	}
+
+	// delta sync: ids são HMACs do plaintext de cada chunk, calculados no cliente
+	public record SyncMissingReq(List<String> ids) {
+	}
+
+	public record SyncMissingResp(List<String> missing) {
+	}
+
+	public record SyncCommitReq(String filename, List<String> chunks, String mac) {
+	}
+
+	public record SyncManifest(String filename, List<String> chunks, List<Long> sizes, String mac) {
+	}
+
+	public record FileInfo(String name, long size, long ts, boolean chunked) {
+	}
+
+	public record FileList(List<FileInfo> files, String nextCursor) {
+	}
 }
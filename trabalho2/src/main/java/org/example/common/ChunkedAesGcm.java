@@ -0,0 +1,225 @@
+package org.example.common;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Formato de blob versão 2: AES-GCM em chunks de tamanho fixo, cada um com sua tag.
+ *
+ * <pre>
+ * header = 0x02 | chunkSize (u32 BE) | prefixo do nonce (7 bytes aleatórios)
+ * chunk i = AES-GCM(plain_i), nonce = prefixo | i (u32 BE) | último? 1 : 0, AAD = header | aad
+ * </pre>
+ *
+ * O byte final no nonce impede truncar o blob numa fronteira de chunk; o header na AAD
+ * impede trocar o tamanho de chunk. Cifrar e decifrar usam memória constante (um chunk).
+ */
+public final class ChunkedAesGcm {
+	public static final byte VERSION = 2;
+	public static final int DEFAULT_CHUNK = 64 * 1024;
+	public static final int MAX_CHUNK = 16 << 20;
+	static final int PREFIX_LEN = 7;
+	static final int HEADER_LEN = 1 + 4 + PREFIX_LEN;
+	static final int TAG_LEN = CryptoUtils.GCM_TAG_BITS / 8;
+
+	private ChunkedAesGcm() {
+	}
+
+	static byte[] nonce(byte[] prefix, long index, boolean last) {
+		if (index > 0xFFFFFFFFL)
+			throw new IllegalStateException("blob com chunks demais");
+		ByteBuffer bb = ByteBuffer.allocate(CryptoUtils.GCM_IV_LEN);
+		bb.put(prefix).putInt((int) index).put((byte) (last ? 1 : 0));
+		return bb.array();
+	}
+
+	static byte[] chunkAad(byte[] header, byte[] aad) {
+		if (aad == null || aad.length == 0)
+			return header;
+		byte[] a = new byte[header.length + aad.length];
+		System.arraycopy(header, 0, a, 0, header.length);
+		System.arraycopy(aad, 0, a, header.length, aad.length);
+		return a;
+	}
+
+	/** Cifra tudo o que for escrito; o último chunk só é emitido no {@link #close()}. */
+	public static final class EncryptingOutputStream extends FilterOutputStream {
+		private final SecretKeySpec key;
+		private final byte[] prefix;
+		private final byte[] aad;
+		private final Cipher cipher;
+		private final byte[] buf;
+		private final byte[] ct;
+		private int pos;
+		private long index;
+		private boolean closed;
+
+		public EncryptingOutputStream(byte[] key, OutputStream out, byte[] aad, int chunkSize) throws IOException {
+			super(out);
+			if (chunkSize <= 0 || chunkSize > MAX_CHUNK)
+				throw new IllegalArgumentException("chunkSize invalido: " + chunkSize);
+			this.key = new SecretKeySpec(key, "AES");
+			this.prefix = CryptoUtils.rand(PREFIX_LEN);
+			byte[] header = ByteBuffer.allocate(HEADER_LEN).put(VERSION).putInt(chunkSize).put(prefix).array();
+			this.aad = chunkAad(header, aad);
+			this.buf = new byte[chunkSize];
+			this.ct = new byte[chunkSize + TAG_LEN];
+			try {
+				this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			} catch (GeneralSecurityException e) {
+				throw new IOException("AES-GCM encrypt error", e);
+			}
+			out.write(header);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				// só sabemos que um chunk cheio não é o último quando chega mais um byte
+				if (pos == buf.length)
+					emit(false);
+				int n = Math.min(len, buf.length - pos);
+				System.arraycopy(b, off, buf, pos, n);
+				pos += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void emit(boolean last) throws IOException {
+			try {
+				cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(CryptoUtils.GCM_TAG_BITS, nonce(prefix, index++, last)));
+				cipher.updateAAD(aad);
+				int n = cipher.doFinal(buf, 0, pos, ct, 0);
+				out.write(ct, 0, n);
+				pos = 0;
+			} catch (GeneralSecurityException e) {
+				throw new IOException("AES-GCM encrypt error", e);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				emit(true);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Decifra um blob v2 chunk a chunk. Cada chunk só é entregue depois de a tag conferir;
+	 * falha de autenticação ou truncamento vira {@link IOException}.
+	 */
+	public static final class DecryptingInputStream extends InputStream {
+		private final InputStream in;
+		private final SecretKeySpec key;
+		private final byte[] prefix;
+		private final byte[] aad;
+		private final Cipher cipher;
+		private final byte[] enc;
+		private final byte[] plain;
+		private int lookahead = -1;
+		private int pos, lim;
+		private long index;
+		private boolean done;
+
+		/** Espera que o byte de versão já tenha sido consumido de {@code in}. */
+		DecryptingInputStream(byte[] key, InputStream in, byte[] aad) throws IOException {
+			this.in = in;
+			byte[] rest = in.readNBytes(HEADER_LEN - 1);
+			if (rest.length != HEADER_LEN - 1)
+				throw new IOException("blob v2 truncado");
+			ByteBuffer hb = ByteBuffer.allocate(HEADER_LEN).put(VERSION).put(rest);
+			int chunkSize = hb.getInt(1);
+			if (chunkSize <= 0 || chunkSize > MAX_CHUNK)
+				throw new IOException("chunkSize invalido: " + chunkSize);
+			this.prefix = new byte[PREFIX_LEN];
+			hb.get(5, prefix);
+			this.aad = chunkAad(hb.array(), aad);
+			this.key = new SecretKeySpec(key, "AES");
+			this.enc = new byte[chunkSize + TAG_LEN];
+			this.plain = new byte[chunkSize];
+			try {
+				this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			} catch (GeneralSecurityException e) {
+				throw new IOException("AES-GCM decrypt error", e);
+			}
+		}
+
+		private boolean fill() throws IOException {
+			if (done)
+				return false;
+			int n = 0;
+			if (lookahead >= 0) {
+				enc[n++] = (byte) lookahead;
+				lookahead = -1;
+			}
+			n += in.readNBytes(enc, n, enc.length - n);
+			if (n < TAG_LEN)
+				throw new IOException("blob v2 truncado");
+			lookahead = in.read();
+			boolean last = lookahead < 0;
+			if (!last && n != enc.length)
+				throw new IOException("blob v2 corrompido");
+			try {
+				cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(CryptoUtils.GCM_TAG_BITS, nonce(prefix, index++, last)));
+				cipher.updateAAD(aad);
+				lim = cipher.doFinal(enc, 0, n, plain, 0);
+				pos = 0;
+			} catch (AEADBadTagException e) {
+				throw new IOException("AES-GCM: tag invalida no chunk " + (index - 1), e);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("AES-GCM decrypt error", e);
+			}
+			done = last;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (pos == lim)
+				if (!fill())
+					return -1;
+			return plain[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (pos == lim)
+				if (!fill())
+					return -1;
+			int n = Math.min(len, lim - pos);
+			System.arraycopy(plain, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
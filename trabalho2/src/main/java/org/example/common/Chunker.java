@@ -0,0 +1,68 @@
+package org.example.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Divide um stream em chunks definidos pelo conteúdo (CDC com gear hash, no estilo FastCDC):
+ * o corte acontece onde o hash dos últimos ~64 bytes bate com a máscara, então inserir ou
+ * apagar bytes só muda os chunks em volta da edição. Tamanhos entre {@value #MIN} e {@value #MAX}
+ * bytes, média perto de 80 KiB.
+ */
+public final class Chunker {
+	public static final int MIN = 16 * 1024;
+	public static final int MAX = 256 * 1024;
+	// 16 bits do topo (os de baixo só dependem dos últimos bytes): um corte a cada ~64 KiB depois do mínimo
+	private static final long MASK = -1L << 48;
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// tabela fixa (splitmix64 com semente constante): os cortes precisam ser os mesmos em qualquer máquina
+		long x = 0x7765737470686131L;
+		for (int i = 0; i < GEAR.length; i++) {
+			long z = (x += 0x9E3779B97F4A7C15L);
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+
+	private final InputStream in;
+	private final byte[] buf = new byte[MAX];
+	private int len;
+	private boolean eof;
+
+	public Chunker(InputStream in) {
+		this.in = in;
+	}
+
+	/** Próximo chunk, ou null no fim do stream. */
+	public byte[] next() throws IOException {
+		if (!eof && len < MAX) {
+			int n = in.readNBytes(buf, len, MAX - len);
+			len += n;
+			eof = len < MAX;
+		}
+		if (len == 0)
+			return null;
+		int cut = cut(buf, len);
+		byte[] c = Arrays.copyOf(buf, cut);
+		System.arraycopy(buf, cut, buf, 0, len - cut);
+		len -= cut;
+		return c;
+	}
+
+	static int cut(byte[] b, int len) {
+		if (len <= MIN)
+			return len;
+		long h = 0;
+		// o hash só "lembra" os últimos 64 bytes (shift), então basta começar um pouco antes do mínimo
+		for (int i = MIN - 64; i < len; i++) {
+			h = (h << 1) + GEAR[b[i] & 0xFF];
+			if (i >= MIN && (h & MASK) == 0)
+				return i + 1;
+		}
+		return len;
+	}
+}
@@ -0,0 +1,21 @@
+package org.example.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compressão aplicada ao plaintext antes do AES-GCM (blob v3). O {@link #id()} vai no header
+ * do blob; novos codecs entram com {@link Codecs#register(Codec)}.
+ */
+public interface Codec {
+	/** 1..255, único entre os codecs registrados. */
+	int id();
+
+	String name();
+
+	/** O close do stream devolvido termina a compressão e fecha {@code out}. */
+	OutputStream compress(OutputStream out) throws IOException;
+
+	InputStream decompress(InputStream in) throws IOException;
+}
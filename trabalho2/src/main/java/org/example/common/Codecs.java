@@ -0,0 +1,87 @@
+package org.example.common;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** Registro de {@link Codec}s por id e por nome. */
+public final class Codecs {
+	private static final Map<Integer, Codec> byId = new ConcurrentHashMap<>();
+	private static final Map<String, Codec> byName = new ConcurrentHashMap<>();
+
+	/** Deflate (zlib), nível {@code blob.deflateLevel} (padrão 6). */
+	public static final Codec DEFLATE = register(new DeflateCodec(Integer.getInteger("blob.deflateLevel", 6)));
+
+	private Codecs() {
+	}
+
+	public static Codec register(Codec c) {
+		if (c.id() <= 0 || c.id() > 255)
+			throw new IllegalArgumentException("id de codec invalido: " + c.id());
+		if (byId.putIfAbsent(c.id(), c) != null)
+			throw new IllegalArgumentException("id de codec repetido: " + c.id());
+		byName.put(c.name(), c);
+		return c;
+	}
+
+	public static Codec byId(int id) {
+		return byId.get(id);
+	}
+
+	/** null para "none" ou nome desconhecido. */
+	public static Codec byName(String name) {
+		return name == null ? null : byName.get(name.toLowerCase());
+	}
+
+	/** {@code blob.codec}: "deflate" (padrão) ou "none" para nunca comprimir. */
+	public static Codec defaultCodec() {
+		return byName(System.getProperty("blob.codec", "deflate"));
+	}
+
+	private record DeflateCodec(int level) implements Codec {
+		@Override
+		public int id() {
+			return 1;
+		}
+
+		@Override
+		public String name() {
+			return "deflate";
+		}
+
+		@Override
+		public OutputStream compress(OutputStream out) {
+			Deflater d = new Deflater(level);
+			// Deflater próprio não é liberado pelo DeflaterOutputStream: end() no close
+			return new DeflaterOutputStream(out, d, 64 * 1024) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						d.end();
+					}
+				}
+			};
+		}
+
+		@Override
+		public InputStream decompress(InputStream in) {
+			Inflater inf = new Inflater();
+			return new InflaterInputStream(in, inf, 64 * 1024) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package org.example.common;
+
+import java.io.*;
+
+/**
+ * Formato de blob versão 3: o plaintext passa por um {@link Codec} e o resultado vai num blob v2.
+ *
+ * <pre>
+ * blob v3 = 0x03 | id do codec (u8) | blob v2 cifrado com AAD = 0x03 | id | aad
+ * </pre>
+ *
+ * O id entra na AAD para não dar para trocar o codec sem quebrar a tag. Quem cifra decide
+ * pelo começo do plaintext: entradas pequenas ou que não comprimem saem como v2 puro.
+ */
+public final class CompressedAesGcm {
+	public static final byte VERSION = 3;
+	/** Até este tamanho não compensa: o header e o trailer do codec comem o ganho. */
+	static final int MIN_SIZE = 512;
+	/** Tamanho da amostra usada para decidir. */
+	static final int SAMPLE = 64 * 1024;
+	/** A amostra precisa encolher para no máximo esta fração, senão vai sem compressão. */
+	static final double MAX_RATIO = 0.9;
+
+	private CompressedAesGcm() {
+	}
+
+	static byte[] aad(int codecId, byte[] aad) {
+		return ChunkedAesGcm.chunkAad(new byte[] { VERSION, (byte) codecId }, aad);
+	}
+
+	/** Espera que o byte de versão já tenha sido consumido de {@code in}. */
+	static InputStream open(byte[] key, InputStream in, byte[] aad) throws IOException {
+		int id = in.read();
+		Codec codec = id < 0 ? null : Codecs.byId(id);
+		if (codec == null)
+			throw new IOException("codec desconhecido no blob v3: " + id);
+		if (in.read() != ChunkedAesGcm.VERSION)
+			throw new IOException("blob v3 corrompido");
+		InputStream dec = new ChunkedAesGcm.DecryptingInputStream(key, in, aad(id, aad));
+		InputStream plain = codec.decompress(dec);
+		return new FilterInputStream(plain) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b < 0)
+					checkEnd();
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n < 0)
+					checkEnd();
+				return n;
+			}
+
+			// o codec pode terminar antes do último chunk: lê até o fim para a tag final ser conferida
+			private void checkEnd() throws IOException {
+				if (dec.read() >= 0)
+					throw new IOException("blob v3 corrompido: dados depois do fim do codec");
+			}
+		};
+	}
+
+	/**
+	 * Segura os primeiros {@link CompressedAesGcm#SAMPLE} bytes, testa a compressão neles e só então escolhe
+	 * entre v3 com {@code codec} e v2 sem compressão.
+	 */
+	static final class AdaptiveEncryptingStream extends OutputStream {
+		private final byte[] key;
+		private final OutputStream out;
+		private final byte[] aad;
+		private final Codec codec;
+		private final byte[] sample = new byte[SAMPLE];
+		private int n;
+		private OutputStream target;
+		private boolean closed;
+
+		AdaptiveEncryptingStream(byte[] key, OutputStream out, byte[] aad, Codec codec) {
+			this.key = key;
+			this.out = out;
+			this.aad = aad;
+			this.codec = codec;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (target == null) {
+				int k = Math.min(len, sample.length - n);
+				System.arraycopy(b, off, sample, n, k);
+				n += k;
+				off += k;
+				len -= k;
+				if (n < sample.length)
+					return;
+				decide();
+			}
+			if (len > 0)
+				target.write(b, off, len);
+		}
+
+		private void decide() throws IOException {
+			if (n >= MIN_SIZE && compressedSize() <= n * MAX_RATIO) {
+				out.write(VERSION);
+				out.write(codec.id());
+				target = codec.compress(new ChunkedAesGcm.EncryptingOutputStream(key, out, aad(codec.id(), aad),
+						ChunkedAesGcm.DEFAULT_CHUNK));
+			} else {
+				target = new ChunkedAesGcm.EncryptingOutputStream(key, out, aad, ChunkedAesGcm.DEFAULT_CHUNK);
+			}
+			target.write(sample, 0, n);
+		}
+
+		private long compressedSize() throws IOException {
+			long[] count = new long[1];
+			OutputStream counter = new OutputStream() {
+				@Override
+				public void write(int b) {
+					count[0]++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					count[0] += len;
+				}
+			};
+			try (OutputStream c = codec.compress(counter)) {
+				c.write(sample, 0, n);
+			}
+			return count[0];
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (target != null)
+				target.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			if (target == null)
+				decide();
+			target.close();
+		}
+	}
+}
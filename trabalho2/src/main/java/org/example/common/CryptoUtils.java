@@ -5,9 +5,11 @@ import org.apache.commons.codec.binary.Base32;
 import org.apache.commons.codec.binary.Hex;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
@@ -51,6 +53,13 @@ public final class CryptoUtils {
 	}
 
 	public static byte[] decryptAesGcm(byte[] key, byte[] blob, byte[] aad) {
+		if (blob.length > 0 && (blob[0] == ChunkedAesGcm.VERSION || blob[0] == CompressedAesGcm.VERSION)) {
+			try (InputStream in = newDecryptingStream(key, new ByteArrayInputStream(blob), aad)) {
+				return in.readAllBytes();
+			} catch (IOException e) {
+				throw new RuntimeException("AES-GCM decrypt error", e);
+			}
+		}
 		try {
 			ByteBuffer bb = ByteBuffer.wrap(blob);
 			byte ver = bb.get();
@@ -70,6 +79,70 @@ public final class CryptoUtils {
 		}
 	}
 
+	/** Como {@link #newEncryptingStream(byte[], OutputStream, byte[], Codec)} com {@link Codecs#defaultCodec()}. */
+	public static OutputStream newEncryptingStream(byte[] key, OutputStream out, byte[] aad) throws IOException {
+		return newEncryptingStream(key, out, aad, Codecs.defaultCodec());
+	}
+
+	/**
+	 * Tudo o que for escrito sai cifrado em {@code out}; o close finaliza o blob. Com {@code codec}
+	 * o blob sai v3 (comprimido) quando o começo do plaintext comprime bem, senão v2; null = sempre v2.
+	 */
+	public static OutputStream newEncryptingStream(byte[] key, OutputStream out, byte[] aad, Codec codec) throws IOException {
+		if (codec == null)
+			return new ChunkedAesGcm.EncryptingOutputStream(key, out, aad, ChunkedAesGcm.DEFAULT_CHUNK);
+		return new CompressedAesGcm.AdaptiveEncryptingStream(key, out, aad, codec);
+	}
+
+	/** Lê um blob v1, v2 ou v3 de {@code in} e devolve o plaintext. v2/v3 usam memória constante; v1 é lido inteiro. */
+	public static InputStream newDecryptingStream(byte[] key, InputStream in, byte[] aad) throws IOException {
+		int ver = in.read();
+		if (ver == ChunkedAesGcm.VERSION)
+			return new ChunkedAesGcm.DecryptingInputStream(key, in, aad);
+		if (ver == CompressedAesGcm.VERSION)
+			return CompressedAesGcm.open(key, in, aad);
+		if (ver != 1)
+			throw new IOException("Versão de blob inválida");
+		byte[] rest = in.readAllBytes();
+		in.close();
+		byte[] blob = new byte[rest.length + 1];
+		blob[0] = 1;
+		System.arraycopy(rest, 0, blob, 1, rest.length);
+		return new ByteArrayInputStream(decryptAesGcm(key, blob, aad));
+	}
+
+	/** Devolve quantos bytes de plaintext foram lidos; o tamanho do blob diz quanto a compressão economizou. */
+	public static long encryptStream(byte[] key, InputStream plain, OutputStream blob, byte[] aad) throws IOException {
+		return encryptStream(key, plain, blob, aad, Codecs.defaultCodec());
+	}
+
+	public static long encryptStream(byte[] key, InputStream plain, OutputStream blob, byte[] aad, Codec codec)
+			throws IOException {
+		try (OutputStream enc = newEncryptingStream(key, blob, aad, codec)) {
+			return plain.transferTo(enc);
+		}
+	}
+
+	public static long decryptStream(byte[] key, InputStream blob, OutputStream plain, byte[] aad) throws IOException {
+		try (InputStream dec = newDecryptingStream(key, blob, aad)) {
+			return dec.transferTo(plain);
+		}
+	}
+
+	/** Código TOTP (RFC 6238: SHA1, 6 dígitos, 30 s) para o instante dado; usado pelo gerador de carga. */
+	public static String totpCode(String secretBase32, long epochSeconds) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA1");
+			mac.init(new SecretKeySpec(new Base32().decode(secretBase32), "HmacSHA1"));
+			byte[] d = mac.doFinal(ByteBuffer.allocate(8).putLong(epochSeconds / 30).array());
+			int o = d[d.length - 1] & 0xF;
+			int bin = ((d[o] & 0x7F) << 24) | ((d[o + 1] & 0xFF) << 16) | ((d[o + 2] & 0xFF) << 8) | (d[o + 3] & 0xFF);
+			return String.format("%06d", bin % 1_000_000);
+		} catch (Exception e) {
+			throw new RuntimeException("TOTP error", e);
+		}
+	}
+
 	public static String toHex(byte[] data) {
 		return Hex.encodeHexString(data);
 	}
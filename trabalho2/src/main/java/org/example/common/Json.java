@@ -0,0 +1,63 @@
+package org.example.common;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON dos {@link ApiModels} com um único {@code Gson} compartilhado (é thread-safe), lendo e
+ * escrevendo direto de/para streams UTF-8, sem String intermediária. Formato do Gson padrão
+ * (campos nulos omitidos, desconhecidos ignorados, nada depois do valor), sem escapar HTML.
+ */
+public final class Json {
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+	private Json() {
+	}
+
+	/** Corpo vazio vira null; JSON inválido sai como {@link com.google.gson.JsonSyntaxException}. */
+	public static <T> T read(InputStream in, Class<T> cls) throws IOException {
+		try {
+			return gson.fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), cls);
+		} catch (JsonIOException e) {
+			throw io(e);
+		}
+	}
+
+	public static <T> T read(String s, Class<T> cls) {
+		return gson.fromJson(s, cls);
+	}
+
+	/** Escreve {@code v} em UTF-8 em {@code out}; não fecha o stream. */
+	public static void write(OutputStream out, Object v) throws IOException {
+		Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		try {
+			gson.toJson(v, w);
+		} catch (JsonIOException e) {
+			throw io(e);
+		}
+		w.flush();
+	}
+
+	public static byte[] toBytes(Object v) {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream(128);
+		try {
+			write(bo, v);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bo.toByteArray();
+	}
+
+	public static String toJson(Object v) {
+		return gson.toJson(v);
+	}
+
+	// o Gson embrulha o IOException do stream; quem chama espera o original
+	private static IOException io(JsonIOException e) {
+		return e.getCause() instanceof IOException io ? io : new IOException(e);
+	}
+}
@@ -29,11 +29,25 @@ public final class PasswordHasher {
 	}
 
 	public static String hashForStorage(String password, byte[] salt) {
-		byte[] dk = pbkdf2(password.toCharArray(), salt, DEFAULT_ITER, HASH_LEN);
-		return "pbkdf2$sha256$" + DEFAULT_ITER + "$" + Base64.getEncoder().encodeToString(salt) +
+		return hashForStorage(password, salt, DEFAULT_ITER);
+	}
+
+	public static String hashForStorage(String password, byte[] salt, int iterations) {
+		byte[] dk = pbkdf2(password.toCharArray(), salt, iterations, HASH_LEN);
+		return "pbkdf2$sha256$" + iterations + "$" + Base64.getEncoder().encodeToString(salt) +
 				"$" + Base64.getEncoder().encodeToString(dk);
 	}
 
+	/** Iterações gravadas no hash, ou -1 se o formato não é reconhecido. */
+	public static int iterations(String stored) {
+		try {
+			String[] parts = stored.split("\\$");
+			return parts.length == 5 && parts[0].equals("pbkdf2") ? Integer.parseInt(parts[2]) : -1;
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
 	public static boolean verify(String stored, String password) {
 		try {
 			String[] parts = stored.split("\\$");
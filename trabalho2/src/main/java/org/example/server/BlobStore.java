@@ -0,0 +1,175 @@
+package org.example.server;
+
+import org.example.common.CryptoUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Guarda o ciphertext de cada arquivo como um arquivo próprio em disco,
+ * endereçado pelo SHA-256 do conteúdo (ex.: {@code server-blobs/ab/ab12...}).
+ * O {@link UserStore} guarda só o hash e o tamanho.
+ */
+public final class BlobStore {
+	public record Blob(String sha256, long size) {
+	}
+
+	private final Path dir;
+	// put/adopt reaproveitando um blob (leitura) contra a remoção na varredura (escrita)
+	private final ReentrantReadWriteLock gc = new ReentrantReadWriteLock();
+
+	public BlobStore(Path dir) {
+		this.dir = dir;
+		try {
+			Files.createDirectories(dir);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public Blob put(byte[] data) throws IOException {
+		return put(new ByteArrayInputStream(data));
+	}
+
+	/** Copia o stream para um temporário calculando o hash, faz fsync e renomeia para o destino. */
+	public Blob put(InputStream in) throws IOException {
+		MessageDigest md = sha256();
+		Path tmp = Files.createTempFile(dir, "up-", ".tmp");
+		try {
+			long size;
+			try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE);
+					OutputStream os = Channels.newOutputStream(ch)) {
+				size = new DigestInputStream(in, md).transferTo(os);
+				ch.force(true);
+			}
+			String hash = CryptoUtils.toHex(md.digest());
+			Path dst = path(hash);
+			gc.readLock().lock();
+			try {
+				if (!reuse(dst)) {
+					Files.createDirectories(dst.getParent());
+					Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				gc.readLock().unlock();
+			}
+			return new Blob(hash, size);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/** Adota um arquivo já completo (upload retomável): calcula o hash e move para o destino, sem copiar. */
+	public Blob adopt(Path file) throws IOException {
+		MessageDigest md = sha256();
+		long size;
+		try (InputStream in = new DigestInputStream(Files.newInputStream(file), md)) {
+			size = in.transferTo(OutputStream.nullOutputStream());
+		}
+		String hash = CryptoUtils.toHex(md.digest());
+		Path dst = path(hash);
+		gc.readLock().lock();
+		try {
+			if (reuse(dst)) {
+				Files.delete(file);
+			} else {
+				Files.createDirectories(dst.getParent());
+				Files.move(file, dst, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} finally {
+			gc.readLock().unlock();
+		}
+		return new Blob(hash, size);
+	}
+
+	// conteúdo repetido reaproveita o blob; a data nova o protege de uma varredura já em andamento
+	private static boolean reuse(Path p) throws IOException {
+		try {
+			Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	public Path path(String sha256) {
+		return dir.resolve(sha256.substring(0, 2)).resolve(sha256);
+	}
+
+	public boolean exists(String sha256) {
+		return Files.exists(path(sha256));
+	}
+
+	/**
+	 * Escreve o blob em {@code os} (um encoder, que não aceita {@link #transferTo}) lendo do canal com
+	 * um buffer fixo. Sem mmap: as janelas mapeadas só seriam soltas pelo GC.
+	 */
+	public void copyTo(String sha256, OutputStream os) throws IOException {
+		try (FileChannel ch = FileChannel.open(path(sha256), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+			while (ch.read(buf.clear()) > 0)
+				os.write(buf.array(), 0, buf.position());
+		}
+	}
+
+	/** Envia o blob inteiro com {@link FileChannel#transferTo}, sem passar por buffers do heap quando o destino permite. */
+	public void transferTo(String sha256, OutputStream os) throws IOException {
+		transferTo(sha256, 0, Long.MAX_VALUE, os);
+	}
+
+	/** Envia {@code len} bytes a partir de {@code from} (respostas 206 de Range). */
+	public void transferTo(String sha256, long from, long len, OutputStream os) throws IOException {
+		try (FileChannel ch = FileChannel.open(path(sha256), StandardOpenOption.READ)) {
+			WritableByteChannel out = Channels.newChannel(os);
+			long end = Math.min(ch.size(), from + Math.min(len, ch.size()));
+			for (long pos = from; pos < end;)
+				pos += ch.transferTo(pos, end - pos, out);
+		}
+	}
+
+	/** Remove blobs que nenhum {@code StoredFile} referencia mais (uploads sobrescritos). */
+	public int retainOnly(Set<String> live) throws IOException {
+		return retainOnly(live, Long.MAX_VALUE);
+	}
+
+	/** Como {@link #retainOnly(Set)}, mas só apaga blobs modificados antes de {@code olderThanMillis}. */
+	public int retainOnly(Set<String> live, long olderThanMillis) throws IOException {
+		int removed = 0;
+		try (Stream<Path> s = Files.walk(dir, 2)) {
+			// só os diretórios de 2 caracteres guardam blobs; uploads/ e afins ficam de fora
+			for (Path p : (Iterable<Path>) s.filter(Files::isRegularFile)
+					.filter(f -> f.getParent().getFileName().toString().length() == 2)::iterator) {
+				String name = p.getFileName().toString();
+				if (name.endsWith(".tmp") || live.contains(name))
+					continue;
+				// a data é conferida de novo sob o lock: um put que reaproveitou o blob agora há pouco vence
+				gc.writeLock().lock();
+				try {
+					if (Files.getLastModifiedTime(p).toMillis() < olderThanMillis && Files.deleteIfExists(p))
+						removed++;
+				} finally {
+					gc.writeLock().unlock();
+				}
+			}
+		}
+		return removed;
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package org.example.server;
+
+import org.example.common.CryptoUtils;
+import org.example.common.PasswordHasher;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Parâmetros de KDF medidos nesta máquina: iterações de PBKDF2 para o verify do login ficar perto
+ * de {@code kdf.targetMs}, e o maior N do scrypt do cliente que cabe em {@code kdf.scryptMaxMem} e
+ * em {@code kdf.scryptTargetMs}. Os pisos impedem que uma máquina lenta derrube a segurança.
+ * O scrypt roda no cliente; medir aqui é só uma estimativa, por isso o teto de memória manda.
+ */
+public final class KdfCalibrator {
+	public record Params(int pbkdf2Iter, int scryptN, int scryptR, int scryptP, double pbkdf2Ms, double scryptMs) {
+	}
+
+	private static final int PROBE_ITER = 20_000;
+	private static final int PROBE_N = 1 << 12;
+	private static final int SCRYPT_R = 8;
+	private static final int SCRYPT_P = 1;
+	private static final int RUNS = 5;
+	// entre o fim de uma calibração e o início da próxima: medir rouba CPU do tráfego real
+	private static final long COOLDOWN_MS = 5 * 60 * 1000;
+
+	private final double targetMs;
+	private final double scryptTargetMs;
+	private final long scryptMaxMem;
+	private final int minIter;
+	private final int maxIter;
+	private final int minN;
+	private volatile Params current;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private volatile long lastDone;
+
+	public KdfCalibrator(double targetMs, double scryptTargetMs, long scryptMaxMem, int minIter, int maxIter, int minN) {
+		this.targetMs = targetMs;
+		this.scryptTargetMs = scryptTargetMs;
+		this.scryptMaxMem = scryptMaxMem;
+		this.minIter = minIter;
+		this.maxIter = maxIter;
+		this.minN = minN;
+	}
+
+	/**
+	 * {@code kdf.targetMs} (padrão 100), {@code kdf.scryptTargetMs} (padrão 150), {@code kdf.scryptMaxMem}
+	 * (bytes, padrão 64 MiB), {@code kdf.minIter}/{@code kdf.maxIter} e {@code kdf.minScryptN} (2^14).
+	 * Com {@code kdf.calibrate=false} fica nos valores fixos de antes.
+	 */
+	public static KdfCalibrator fromSystemProperties() {
+		KdfCalibrator c = new KdfCalibrator(Double.parseDouble(System.getProperty("kdf.targetMs", "100")),
+				Double.parseDouble(System.getProperty("kdf.scryptTargetMs", "150")),
+				Long.getLong("kdf.scryptMaxMem", 64L << 20),
+				Integer.getInteger("kdf.minIter", 100_000), Integer.getInteger("kdf.maxIter", 2_000_000),
+				Integer.getInteger("kdf.minScryptN", 1 << 14));
+		c.current = new Params(PasswordHasher.DEFAULT_ITER, 1 << 14, SCRYPT_R, SCRYPT_P, 0, 0);
+		// a subida não espera, e até lá valem os parâmetros fixos
+		if (Boolean.parseBoolean(System.getProperty("kdf.calibrate", "true")))
+			c.calibrateInBackground();
+		return c;
+	}
+
+	public Params current() {
+		return current;
+	}
+
+	/**
+	 * Mede de novo numa thread própria, se nenhuma medida está em andamento nem terminou há menos de
+	 * {@value #COOLDOWN_MS} ms. O resultado passa a valer em {@link #current()} quando acabar.
+	 *
+	 * @return false se não começou uma medida nova
+	 */
+	public boolean calibrateInBackground() {
+		if (System.currentTimeMillis() - lastDone < COOLDOWN_MS || !running.compareAndSet(false, true))
+			return false;
+		Thread t = new Thread(() -> {
+			try {
+				System.out.println("KDF calibrado: " + calibrate());
+			} finally {
+				lastDone = System.currentTimeMillis();
+				running.set(false);
+			}
+		}, "kdf-calibrate");
+		t.setDaemon(true);
+		t.start();
+		return true;
+	}
+
+	/** Mede de novo (alguns segundos de CPU) e passa a valer para cadastros e rehashes a partir de agora. */
+	private synchronized Params calibrate() {
+		byte[] salt = PasswordHasher.randomSalt();
+		// o JIT frio e o ruído só atrapalham para cima: aquece e fica com a melhor medida
+		double probe = best(() -> PasswordHasher.pbkdf2("calibracao".toCharArray(), salt, PROBE_ITER, PasswordHasher.HASH_LEN),
+				100);
+		long iter = Math.round(PROBE_ITER * targetMs / probe / 1000) * 1000;
+		int it = (int) Math.max(minIter, Math.min(maxIter, iter));
+
+		double sProbe = best(() -> CryptoUtils.scrypt("calibracao", salt, PROBE_N, SCRYPT_R, SCRYPT_P, 32), 30);
+		// custo e memória (128·N·r bytes) são lineares em N; N precisa ser potência de 2
+		int n = minN;
+		while (128L * (n << 1) * SCRYPT_R <= scryptMaxMem && sProbe * (n << 1) / PROBE_N <= scryptTargetMs)
+			n <<= 1;
+		Params p = new Params(it, n, SCRYPT_R, SCRYPT_P, probe * it / PROBE_ITER, sProbe * n / PROBE_N);
+		current = p;
+		return p;
+	}
+
+	/**
+	 * Hash bem abaixo do alvo atual, ou com mais que o dobro (caro demais para esta máquina). A folga
+	 * evita refazer todos os hashes a cada restart só porque a medida oscilou alguns por cento.
+	 */
+	public boolean needsRehash(String stored) {
+		int it = PasswordHasher.iterations(stored);
+		int want = current.pbkdf2Iter();
+		return it > 0 && (it < want * 0.8 || it > 2L * want);
+	}
+
+	// o aquecimento é medido em chamadas, não em tempo: numa máquina lenta o C2 só entra depois
+	// de ~1M iterações de HMAC, e parar no primeiro platô do C1 superestimaria o custo
+	private static double best(Runnable r, int warmup) {
+		for (int i = 0; i < warmup; i++)
+			r.run();
+		double best = Double.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			long t0 = System.nanoTime();
+			r.run();
+			best = Math.min(best, (System.nanoTime() - t0) / 1e6);
+		}
+		return best;
+	}
+}
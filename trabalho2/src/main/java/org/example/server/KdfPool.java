@@ -0,0 +1,91 @@
+package org.example.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool dedicado para PBKDF2 (login/cadastro), com fila limitada. Fila cheia
+ * = {@link RejectedExecutionException} na hora, e o handler responde 503 em vez de esperar.
+ */
+public final class KdfPool {
+	public record Stats(int threads, int queued, int queueCapacity, int active, long completed, long rejected,
+			double avgWaitMs, double maxWaitMs, double avgRunMs) {
+	}
+
+	private final ThreadPoolExecutor pool;
+	private final int queueCapacity;
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder runNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	public KdfPool(int threads, int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		AtomicInteger n = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread t = new Thread(r, "kdf-" + n.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/** {@code kdf.threads} (padrão: núcleos) e {@code kdf.queue} (padrão: 4 por thread). */
+	public static KdfPool fromSystemProperties() {
+		int threads = Integer.getInteger("kdf.threads", Runtime.getRuntime().availableProcessors());
+		return new KdfPool(threads, Integer.getInteger("kdf.queue", threads * 4));
+	}
+
+	/**
+	 * Executa {@code task} no pool e espera o resultado.
+	 *
+	 * @throws RejectedExecutionException se a fila está cheia
+	 */
+	public <T> T call(Callable<T> task) throws Exception {
+		long enq = System.nanoTime();
+		Future<T> f;
+		try {
+			f = pool.submit(() -> {
+				long start = System.nanoTime();
+				long w = start - enq;
+				waitNanos.add(w);
+				maxWaitNanos.accumulateAndGet(w, Math::max);
+				try {
+					return task.call();
+				} finally {
+					runNanos.add(System.nanoTime() - start);
+					completed.increment();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			throw e;
+		}
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception c)
+				throw c;
+			throw e;
+		}
+	}
+
+	/** Segundos até a fila atual esvaziar, pela média de execução; usado no Retry-After. */
+	public int retryAfterSeconds() {
+		long done = completed.sum();
+		double avgRunMs = done == 0 ? 100 : runNanos.sum() / 1e6 / done;
+		double s = (pool.getQueue().size() + pool.getActiveCount()) * avgRunMs / pool.getMaximumPoolSize() / 1000;
+		return (int) Math.max(1, Math.ceil(s));
+	}
+
+	public Stats stats() {
+		long done = completed.sum();
+		return new Stats(pool.getMaximumPoolSize(), pool.getQueue().size(), queueCapacity, pool.getActiveCount(),
+				done, rejected.sum(),
+				done == 0 ? 0 : waitNanos.sum() / 1e6 / done, maxWaitNanos.get() / 1e6,
+				done == 0 ? 0 : runNanos.sum() / 1e6 / done);
+	}
+}
@@ -0,0 +1,184 @@
+package org.example.server;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores e histogramas do servidor, expostos em formato texto do Prometheus.
+ * Gravar é só incrementar contadores pré-alocados: nada é alocado por requisição.
+ */
+public final class Metrics {
+	/**
+	 * Histograma log-linear no estilo HDR: 16 sub-buckets por potência de 2 (erro relativo ≤ 6,25%),
+	 * cobrindo de 1 ns a ~2^62 ns com um {@link AtomicLongArray} fixo.
+	 */
+	public static final class Histogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		public void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			counts.incrementAndGet(index(nanos));
+			count.increment();
+			sum.add(nanos);
+		}
+
+		static int index(long v) {
+			if (v < SUB)
+				return (int) v;
+			int e = 63 - Long.numberOfLeadingZeros(v);
+			int sub = (int) (v >>> (e - SUB_BITS)) & (SUB - 1);
+			return (e - SUB_BITS + 1) * SUB + sub;
+		}
+
+		// maior valor que cai no bucket
+		static long upperBound(int idx) {
+			if (idx < SUB)
+				return idx;
+			int e = idx / SUB + SUB_BITS - 1;
+			long sub = idx % SUB;
+			return ((SUB + sub + 1) << (e - SUB_BITS)) - 1;
+		}
+
+		public long count() {
+			return count.sum();
+		}
+
+		public long sumNanos() {
+			return sum.sum();
+		}
+
+		/** Quantil aproximado em ns (limite superior do bucket). Só usado no scrape. */
+		public long quantile(double q) {
+			long[] snap = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				snap[i] = counts.get(i);
+				total += snap[i];
+			}
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snap[i];
+				if (seen >= rank)
+					return upperBound(i);
+			}
+			return upperBound(BUCKETS - 1);
+		}
+	}
+
+	/** Métricas de um contexto HTTP. */
+	public static final class Endpoint {
+		final String name;
+		final LongAdder requests = new LongAdder();
+		final AtomicLongArray status = new AtomicLongArray(600);
+		final LongAdder bytesIn = new LongAdder();
+		final LongAdder bytesOut = new LongAdder();
+		final Histogram latency = new Histogram();
+
+		Endpoint(String name) {
+			this.name = name;
+		}
+
+		public void record(int code, long in, long out, long nanos) {
+			requests.increment();
+			status.incrementAndGet(code > 0 && code < 600 ? code : 0);
+			if (in > 0)
+				bytesIn.add(in);
+			if (out > 0)
+				bytesOut.add(out);
+			latency.record(nanos);
+		}
+	}
+
+	/** Gauge lido na hora do scrape (filas, sessões...). */
+	@FunctionalInterface
+	public interface Gauge {
+		double value();
+	}
+
+	private static final List<Endpoint> endpoints = new CopyOnWriteArrayList<>();
+	private static final Map<String, Histogram> stages = Collections.synchronizedMap(new LinkedHashMap<>());
+	private static final Map<String, Gauge> gauges = Collections.synchronizedMap(new LinkedHashMap<>());
+
+	// etapas internas cronometradas separadamente do tempo total do handler
+	public static final Histogram KDF_VERIFY = stage("kdf_verify");
+	public static final Histogram TOTP_VERIFY = stage("totp_verify");
+	public static final Histogram STORE_PERSIST = stage("store_persist");
+	public static final Histogram JSON_PARSE = stage("json_parse");
+	public static final Histogram JSON_SERIALIZE = stage("json_serialize");
+
+	private Metrics() {
+	}
+
+	public static Histogram stage(String name) {
+		return stages.computeIfAbsent(name, k -> new Histogram());
+	}
+
+	public static Endpoint endpoint(String name) {
+		Endpoint e = new Endpoint(name);
+		endpoints.add(e);
+		return e;
+	}
+
+	public static void gauge(String name, Gauge g) {
+		gauges.put(name, g);
+	}
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	public static String prometheus() {
+		StringBuilder sb = new StringBuilder(4096);
+		sb.append("# TYPE http_requests_total counter\n");
+		for (Endpoint e : endpoints) {
+			for (int c = 0; c < 600; c++) {
+				long n = e.status.get(c);
+				if (n > 0)
+					sb.append("http_requests_total{endpoint=\"").append(e.name).append("\",code=\"").append(c)
+							.append("\"} ").append(n).append('\n');
+			}
+		}
+		sb.append("# TYPE http_request_bytes_total counter\n");
+		for (Endpoint e : endpoints) {
+			sb.append("http_request_bytes_total{endpoint=\"").append(e.name).append("\",direction=\"in\"} ")
+					.append(e.bytesIn.sum()).append('\n');
+			sb.append("http_request_bytes_total{endpoint=\"").append(e.name).append("\",direction=\"out\"} ")
+					.append(e.bytesOut.sum()).append('\n');
+		}
+		sb.append("# TYPE http_request_duration_seconds summary\n");
+		for (Endpoint e : endpoints)
+			summary(sb, "http_request_duration_seconds", "endpoint", e.name, e.latency);
+		sb.append("# TYPE stage_duration_seconds summary\n");
+		synchronized (stages) {
+			for (Map.Entry<String, Histogram> s : stages.entrySet())
+				summary(sb, "stage_duration_seconds", "stage", s.getKey(), s.getValue());
+		}
+		synchronized (gauges) {
+			for (Map.Entry<String, Gauge> g : gauges.entrySet()) {
+				sb.append("# TYPE ").append(g.getKey()).append(" gauge\n");
+				sb.append(g.getKey()).append(' ').append(g.getValue().value()).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void summary(StringBuilder sb, String metric, String label, String value, Histogram h) {
+		for (double q : QUANTILES)
+			sb.append(metric).append('{').append(label).append("=\"").append(value).append("\",quantile=\"").append(q)
+					.append("\"} ").append(h.quantile(q) / 1e9).append('\n');
+		sb.append(metric).append("_sum{").append(label).append("=\"").append(value).append("\"} ")
+				.append(h.sumNanos() / 1e9).append('\n');
+		sb.append(metric).append("_count{").append(label).append("=\"").append(value).append("\"} ")
+				.append(h.count()).append('\n');
+	}
+}
@@ -0,0 +1,117 @@
+package org.example.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Token bucket por chave (IP ou usuário): {@code burst} pedidos de uma vez e depois
+ * {@code perMinute} por minuto. O mapa é limitado a {@code maxKeys}: uma varredura periódica tira
+ * os baldes que já voltaram a encher (idênticos a um novo, então não se perde nada). Lotado, uma
+ * chave nova só entra no lugar de um balde cheio de uma amostra pequena; sem nenhum, ela é recusada
+ * até a próxima varredura. Um balde que ainda está limitando nunca sai, senão encher o mapa de
+ * chaves lixo zeraria o limite de quem está sendo barrado.
+ */
+public final class RateLimiter {
+	private static final int SAMPLE = 16;
+	private static final long SWEEP_SECONDS = 10;
+
+	private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "rate-limit-sweep");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final class Bucket {
+		double tokens;
+		long last; // nanoTime do último acesso
+
+		Bucket(double tokens, long last) {
+			this.tokens = tokens;
+			this.last = last;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+	private final double burst;
+	private final double perNano;
+	private final int maxKeys;
+
+	/** {@code burst <= 0} desliga o limite. */
+	public RateLimiter(double burst, double perMinute, int maxKeys) {
+		this.burst = burst;
+		this.perNano = perMinute / 60e9;
+		this.maxKeys = maxKeys;
+		if (enabled())
+			sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/** {@code rate.<name>.burst}, {@code rate.<name>.perMinute} e {@code rate.maxKeys} (padrão 100 mil por limitador). */
+	public static RateLimiter fromSystemProperties(String name, int burst, int perMinute) {
+		return new RateLimiter(Integer.getInteger("rate." + name + ".burst", burst),
+				Integer.getInteger("rate." + name + ".perMinute", perMinute), Integer.getInteger("rate.maxKeys", 100_000));
+	}
+
+	public boolean enabled() {
+		return burst > 0 && perNano > 0;
+	}
+
+	/**
+	 * Consome um token de {@code key}.
+	 *
+	 * @return 0 se liberado, senão em quantos segundos haverá um token (para o Retry-After)
+	 */
+	public long acquire(String key) {
+		if (!enabled() || key == null)
+			return 0;
+		long now = System.nanoTime();
+		while (true) {
+			Bucket b = buckets.get(key);
+			if (b == null) {
+				if (buckets.size() >= maxKeys && !evictFull())
+					return SWEEP_SECONDS;
+				b = buckets.computeIfAbsent(key, k -> new Bucket(burst, now));
+			}
+			synchronized (b) {
+				// a varredura tira baldes sob o lock deles: se este saiu, o próximo get cria um igual a ele
+				if (buckets.get(key) != b)
+					continue;
+				b.tokens = Math.min(burst, b.tokens + Math.max(0, now - b.last) * perNano);
+				b.last = now;
+				if (b.tokens >= 1) {
+					b.tokens -= 1;
+					return 0;
+				}
+				return Math.max(1, (long) Math.ceil((1 - b.tokens) / perNano / 1e9));
+			}
+		}
+	}
+
+	public int size() {
+		return buckets.size();
+	}
+
+	// a ordem de iteração do ConcurrentHashMap segue o hash: os primeiros SAMPLE são uma amostra barata
+	private boolean evictFull() {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<String, Bucket>> it = buckets.entrySet().iterator();
+		for (int i = 0; i < SAMPLE && it.hasNext(); i++)
+			if (removeIfFull(it.next(), now))
+				return true;
+		return false;
+	}
+
+	private void sweep() {
+		long now = System.nanoTime();
+		for (Map.Entry<String, Bucket> e : buckets.entrySet())
+			removeIfFull(e, now);
+	}
+
+	// sob o lock do balde, para um acquire no meio não consumir um token de um balde já fora do mapa
+	private boolean removeIfFull(Map.Entry<String, Bucket> e, long now) {
+		Bucket b = e.getValue();
+		synchronized (b) {
+			return b.tokens + Math.max(0, now - b.last) * perNano >= burst && buckets.remove(e.getKey(), b);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package org.example.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor dos handlers HTTP: uma virtual thread por requisição (padrão) ou um
+ * pool de threads de plataforma, sempre limitado a {@code maxConcurrent}
+ * requisições executando ao mesmo tempo. Quem não consegue vaga em {@code queueTimeoutMs}
+ * roda mesmo assim, mas marcado com {@link #shed()}, só para responder 503: sob sobrecarga a
+ * espera fica limitada em vez de acumular threads paradas sem fim.
+ */
+public final class RequestExecutor implements Executor {
+	public enum Mode {
+		VIRTUAL, POOL
+	}
+
+	// marca a thread de uma requisição que não conseguiu vaga a tempo
+	private static final ThreadLocal<Boolean> SHED = new ThreadLocal<>();
+
+	private final Mode mode;
+	private final ExecutorService delegate;
+	private final Semaphore permits;
+	private final int maxConcurrent;
+	private final long queueTimeoutMs;
+	private final LongAdder shedTotal = new LongAdder();
+
+	public RequestExecutor(Mode mode, int poolThreads, int maxConcurrent, long queueTimeoutMs) {
+		this.mode = mode;
+		this.maxConcurrent = maxConcurrent;
+		this.queueTimeoutMs = queueTimeoutMs;
+		this.permits = new Semaphore(maxConcurrent);
+		if (mode == Mode.VIRTUAL) {
+			this.delegate = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("req-", 0).factory());
+		} else {
+			AtomicInteger n = new AtomicInteger();
+			this.delegate = Executors.newFixedThreadPool(poolThreads, r -> {
+				Thread t = new Thread(r, "req-" + n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * Lê a configuração das propriedades de sistema:
+	 * {@code server.executor} (virtual|pool), {@code server.threads}, {@code server.maxConcurrent} e
+	 * {@code server.queueTimeoutMs} (padrão 200).
+	 */
+	public static RequestExecutor fromSystemProperties() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		Mode mode = Mode.valueOf(System.getProperty("server.executor", "virtual").toUpperCase());
+		int threads = Integer.getInteger("server.threads", cores * 4);
+		int max = Integer.getInteger("server.maxConcurrent", mode == Mode.VIRTUAL ? 1024 : threads);
+		return new RequestExecutor(mode, threads, max, Long.getLong("server.queueTimeoutMs", 200));
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		delegate.execute(() -> {
+			// a espera pela permissão acontece na thread do handler, nunca no dispatcher
+			boolean got;
+			try {
+				got = permits.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (!got) {
+				// o exchange só fecha respondendo: o handler roda, vê shed() e devolve 503 na hora
+				shedTotal.increment();
+				SHED.set(Boolean.TRUE);
+				try {
+					task.run();
+				} finally {
+					SHED.remove();
+				}
+				return;
+			}
+			try {
+				task.run();
+			} finally {
+				permits.release();
+			}
+		});
+	}
+
+	/** true na thread de uma requisição que não conseguiu vaga a tempo. */
+	public static boolean shed() {
+		return SHED.get() != null;
+	}
+
+	public long shedTotal() {
+		return shedTotal.sum();
+	}
+
+	public Mode mode() {
+		return mode;
+	}
+
+	public int maxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public int inFlight() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	public void shutdown() {
+		delegate.shutdown();
+	}
+}
@@ -0,0 +1,239 @@
+package org.example.server;
+
+import com.google.gson.Gson;
+
+import org.example.common.CryptoUtils;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Uploads retomáveis: o cliente abre um upload declarando o tamanho total, manda o corpo
+ * com PUT a partir do offset confirmado e, se a conexão cair, consulta o offset e continua dali.
+ * Os bytes ficam em {@code <dir>/<id>.part} (fsync ao fim de cada PUT) e os metadados em
+ * {@code <id>.json}, então um upload aberto sobrevive a um reinício do servidor.
+ * Uploads parados há mais de {@code upload.ttl} segundos são descartados.
+ * <p>
+ * Cada usuário tem no máximo {@code upload.maxOpen} uploads abertos (padrão 16) somando no máximo
+ * {@code upload.maxBytes} bytes declarados (padrão 8 GiB): sem isso um usuário reservaria disco à vontade.
+ */
+final class ResumableUploads {
+	record Meta(String user, String name, long size) {
+	}
+
+	/** Abrir mais um upload passaria do limite do usuário; {@code status} é 429 (quantidade) ou 413 (bytes). */
+	static final class LimitExceeded extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		LimitExceeded(int status, String msg) {
+			super(msg);
+			this.status = status;
+		}
+	}
+
+	// uploads abertos (não confirmados) de um usuário
+	private record Usage(int count, long bytes) {
+	}
+
+	static final class Upload {
+		final String id;
+		final Meta meta;
+		// um PUT por vez; um PUT de uma conexão morta pode ainda estar segurando
+		final ReentrantLock lock = new ReentrantLock();
+		// fica no mapa depois do commit para o cliente que perdeu a resposta do último PUT ainda ver done
+		volatile long committedAt;
+
+		Upload(String id, Meta meta) {
+			this.id = id;
+			this.meta = meta;
+		}
+	}
+
+	private static final long SWEEP_EVERY_MS = 10 * 60 * 1000;
+
+	private final Path dir;
+	private final BlobStore blobs;
+	private final long ttlMs;
+	private final int maxOpen;
+	private final long maxBytes;
+	private final Gson gson = new Gson();
+	private final ConcurrentHashMap<String, Upload> open = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Usage> usage = new ConcurrentHashMap<>();
+	private volatile long lastSweep;
+
+	ResumableUploads(Path dir, BlobStore blobs, long ttlSeconds, int maxOpen, long maxBytes) {
+		this.dir = dir;
+		this.blobs = blobs;
+		this.ttlMs = ttlSeconds * 1000;
+		this.maxOpen = maxOpen;
+		this.maxBytes = maxBytes;
+		try {
+			Files.createDirectories(dir);
+			load();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		sweep();
+	}
+
+	static ResumableUploads fromSystemProperties(Path dir, BlobStore blobs) {
+		return new ResumableUploads(dir, blobs, Long.getLong("upload.ttl", 24 * 3600),
+				Integer.getInteger("upload.maxOpen", 16), Long.getLong("upload.maxBytes", 8L << 30));
+	}
+
+	Upload create(String user, String name, long size) throws IOException, LimitExceeded {
+		if (System.currentTimeMillis() - lastSweep > SWEEP_EVERY_MS)
+			sweep();
+		reserve(user, size);
+		String id = CryptoUtils.toHex(CryptoUtils.rand(16));
+		Meta m = new Meta(user, name, size);
+		try {
+			Files.createFile(part(id));
+			Path tmp = dir.resolve(id + ".json.tmp");
+			Files.writeString(tmp, gson.toJson(m), StandardCharsets.UTF_8);
+			Files.move(tmp, dir.resolve(id + ".json"), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			release(m);
+			throw e;
+		}
+		Upload u = new Upload(id, m);
+		open.put(id, u);
+		return u;
+	}
+
+	// confere e reserva numa operação só, para dois POST simultâneos não passarem juntos do limite
+	private void reserve(String user, long size) throws LimitExceeded {
+		int[] refused = new int[1];
+		usage.compute(user, (k, cur) -> {
+			Usage c = cur == null ? new Usage(0, 0) : cur;
+			if (c.count() >= maxOpen)
+				refused[0] = 429;
+			else if (size > maxBytes - c.bytes())
+				refused[0] = 413;
+			else
+				return new Usage(c.count() + 1, c.bytes() + size);
+			return cur;
+		});
+		if (refused[0] == 429)
+			throw new LimitExceeded(429, "limite de " + maxOpen + " uploads abertos");
+		if (refused[0] == 413)
+			throw new LimitExceeded(413, "uploads abertos passariam de " + maxBytes + " bytes");
+	}
+
+	private void release(Meta m) {
+		usage.computeIfPresent(m.user(), (k, c) -> c.count() <= 1 ? null : new Usage(c.count() - 1, c.bytes() - m.size()));
+	}
+
+	/** null se não existe ou é de outro usuário. */
+	Upload get(String user, String id) {
+		Upload u = id == null ? null : open.get(id);
+		return u != null && u.meta.user().equals(user) ? u : null;
+	}
+
+	/** Bytes já gravados com fsync; é daqui que o cliente continua. */
+	long offset(Upload u) throws IOException {
+		return u.committedAt != 0 ? u.meta.size() : Files.size(part(u.id));
+	}
+
+	/**
+	 * Anexa o corpo ao fim do arquivo parcial e devolve o novo offset. Chamar com {@code u.lock}.
+	 * Se a conexão cair no meio, o que chegou fica gravado; bytes além do tamanho declarado são ignorados.
+	 */
+	long append(Upload u, InputStream in) throws IOException {
+		try (FileChannel ch = FileChannel.open(part(u.id), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			long max = u.meta.size() - ch.size();
+			OutputStream os = Channels.newOutputStream(ch);
+			byte[] buf = new byte[64 * 1024];
+			long n = 0;
+			try {
+				int r;
+				while (n < max && (r = in.read(buf, 0, (int) Math.min(buf.length, max - n))) > 0) {
+					os.write(buf, 0, r);
+					n += r;
+				}
+			} finally {
+				ch.force(false);
+			}
+			return ch.size();
+		}
+	}
+
+	/** Move o arquivo completo para o {@link BlobStore} e fecha o upload. Chamar com {@code u.lock}. */
+	BlobStore.Blob commit(Upload u) throws IOException {
+		BlobStore.Blob b = blobs.adopt(part(u.id));
+		Files.deleteIfExists(dir.resolve(u.id + ".json"));
+		u.committedAt = System.currentTimeMillis();
+		release(u.meta);
+		return b;
+	}
+
+	// só para uploads ainda não confirmados
+	private void remove(String id) throws IOException {
+		Upload u = open.remove(id);
+		if (u != null)
+			release(u.meta);
+		Files.deleteIfExists(dir.resolve(id + ".json"));
+		Files.deleteIfExists(part(id));
+	}
+
+	private Path part(String id) {
+		return dir.resolve(id + ".part");
+	}
+
+	private void load() throws IOException {
+		try (Stream<Path> s = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) s::iterator) {
+				String f = p.getFileName().toString();
+				if (!f.endsWith(".json"))
+					continue;
+				String id = f.substring(0, f.length() - 5);
+				if (!Files.exists(part(id))) {
+					Files.deleteIfExists(p);
+					continue;
+				}
+				Meta m = gson.fromJson(Files.readString(p, StandardCharsets.UTF_8), Meta.class);
+				open.put(id, new Upload(id, m));
+				// os que já estavam abertos contam, mesmo passando de um limite que baixou
+				usage.merge(m.user(), new Usage(1, m.size()), (a, b) -> new Usage(a.count() + b.count(), a.bytes() + b.bytes()));
+			}
+		}
+	}
+
+	// a última escrita no .part conta como atividade
+	private void sweep() {
+		lastSweep = System.currentTimeMillis();
+		for (Upload u : open.values()) {
+			if (!u.lock.tryLock())
+				continue;
+			try {
+				if (u.committedAt != 0) {
+					if (lastSweep - u.committedAt > SWEEP_EVERY_MS)
+						open.remove(u.id);
+				} else if (lastSweep - Files.getLastModifiedTime(part(u.id)).toMillis() > ttlMs)
+					remove(u.id);
+			} catch (IOException e) {
+				System.err.println("Falha ao expirar upload " + u.id + ": " + e.getMessage());
+			} finally {
+				u.lock.unlock();
+			}
+		}
+		// sobras de um create interrompido
+		try (Stream<Path> s = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) s::iterator) {
+				String f = p.getFileName().toString();
+				String id = f.substring(0, f.indexOf('.') < 0 ? f.length() : f.indexOf('.'));
+				if (!open.containsKey(id) && lastSweep - Files.getLastModifiedTime(p).toMillis() > ttlMs)
+					Files.deleteIfExists(p);
+			}
+		} catch (IOException e) {
+			System.err.println("Falha ao limpar uploads: " + e.getMessage());
+		}
+	}
+}
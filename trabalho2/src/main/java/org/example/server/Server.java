@@ -1,46 +1,94 @@
 package org.example.server;
 
+import org.example.common.Json;
 import org.example.common.PasswordHasher;
 import org.example.common.ApiModels.*;
 
-import com.google.gson.Gson;
-
 import com.sun.net.httpserver.*;
 
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public final class Server {
-	private static final Gson gson = new Gson();
-	private static final UserStore store = new UserStore(new File("server-db.json"));
+	private static final Path BLOB_DIR = Path.of(System.getProperty("store.blobs", "server-blobs"));
+	private static final BlobStore blobs = new BlobStore(BLOB_DIR);
+	private static final UserStore store = new UserStore(new File(System.getProperty("store.db", "server-db.json")), blobs);
 	public static final String TOTP_APP = "Totp-App";
 	private static final TotpService totp = new TotpService(TOTP_APP);
-	private static final Map<String, String> sessions = new HashMap<>(); // token -> username
+	private static final Sessions sessions = Sessions.fromSystemProperties();
+	private static final KdfPool kdf = KdfPool.fromSystemProperties();
+	private static final KdfCalibrator kdfParams = KdfCalibrator.fromSystemProperties();
+	// rehash de senhas com parâmetros antigos: uma thread de baixa prioridade e fila curta; se lotar, fica para o próximo login
+	private static final ThreadPoolExecutor rehash = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(Integer.getInteger("kdf.rehashQueue", 64)), r -> {
+				Thread t = new Thread(r, "kdf-rehash");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}, new ThreadPoolExecutor.AbortPolicy());
+	private static final Set<String> rehashing = ConcurrentHashMap.newKeySet();
+	private static final LongAdder rehashed = new LongAdder();
+	// /register, /login e /verify-totp: por IP contra quem martela o KDF, por usuário contra força bruta
+	private static final RateLimiter ipLimit = RateLimiter.fromSystemProperties("ip", 30, 60);
+	private static final RateLimiter userLimit = RateLimiter.fromSystemProperties("user", 10, 10);
+	private static final int FILES_PAGE = Integer.getInteger("files.pageSize", 100);
+	private static final int FILES_MAX_PAGE = Integer.getInteger("files.maxPageSize", 1000);
+	private static final int JSON_BUFFER = Integer.getInteger("http.jsonBuffer", 16 << 10);
+	// parciais no mesmo disco dos blobs, para o commit ser só um rename
+	private static final ResumableUploads uploads = ResumableUploads.fromSystemProperties(BLOB_DIR.resolve("uploads"), blobs);
 
 	public static void main(String[] args) throws Exception {
-		int port = 8080;
+		int port = Integer.getInteger("server.port", 8080);
 		HttpServer s = HttpServer.create(new InetSocketAddress(port), 0);
-		s.createContext("/register", j(Server::doRegister));
-		s.createContext("/login", j(Server::doLogin));
-		s.createContext("/verify-totp", j(Server::doVerify));
-		s.createContext("/upload", j(Server::doUpload));
-		s.createContext("/download", j(Server::doDownload));
-		s.createContext("/qrcode", Server::doQr);
-		s.setExecutor(null);
-		System.out.println("Servidor na porta " + port);
+		route(s, "/register", j(Server::doRegister));
+		route(s, "/login", j(Server::doLogin));
+		route(s, "/verify-totp", j(Server::doVerify));
+		route(s, "/logout", j(Server::doLogout));
+		route(s, "/upload", j(Server::doUpload));
+		route(s, "/uploads", j(Server::doResumable));
+		route(s, "/download", j(Server::doDownload));
+		route(s, "/sync", j(Server::doSync));
+		route(s, "/files", j(Server::doFiles));
+		route(s, "/qrcode", Server::doQr);
+		route(s, "/kdf-stats", j(Server::doKdfStats));
+		route(s, "/kdf-params", j(Server::doKdfParams));
+		s.createContext("/metrics", j(Server::doMetrics));
+		RequestExecutor exec = RequestExecutor.fromSystemProperties();
+		s.setExecutor(exec);
+		Metrics.gauge("http_requests_in_flight", exec::inFlight);
+		Metrics.gauge("http_requests_shed_total", exec::shedTotal);
+		Metrics.gauge("kdf_queue_depth", () -> kdf.stats().queued());
+		Metrics.gauge("kdf_active_workers", () -> kdf.stats().active());
+		Metrics.gauge("rate_limit_keys", () -> ipLimit.size() + userLimit.size());
+		Metrics.gauge("kdf_rejected_total", () -> kdf.stats().rejected());
+		Metrics.gauge("kdf_pbkdf2_iterations", () -> kdfParams.current().pbkdf2Iter());
+		Metrics.gauge("kdf_rehash_total", rehashed::sum);
+		Metrics.gauge(sessions instanceof SignedSessions ? "sessions_revoked" : "sessions_active", sessions::size);
+		Metrics.gauge("store_cached_users", store::cachedUsers);
+		Metrics.gauge("store_user_loads_total", store::userLoads);
+		System.out.println("Servidor na porta " + port + " (executor=" + exec.mode().name().toLowerCase()
+				+ ", maxConcurrent=" + exec.maxConcurrent() + ")");
 		s.start();
 	}
 
-	private static void doRegister(HttpExchange ex) throws IOException {
+	private static void doRegister(HttpExchange ex) throws Exception {
+		if (limited(ex, ipLimit, clientIp(ex)))
+			return;
 		RegisterReq req = read(ex, RegisterReq.class);
+		if (limited(ex, userLimit, req.username()))
+			return;
 		if (store.exists(req.username())) {
 			send(ex, 409, "{\"error\":\"usuario existe\"}");
 			return;
 		}
 		byte[] salt = PasswordHasher.randomSalt();
-		String stored = PasswordHasher.hashForStorage(req.password(), salt);
+		KdfCalibrator.Params kp = kdfParams.current();
+		String stored = kdf.call(() -> PasswordHasher.hashForStorage(req.password(), salt, kp.pbkdf2Iter()));
 
 		// Gera segredo TOTP (Base32)
 		String secret = totp.newSecret();
@@ -52,38 +100,108 @@ public final class Server {
 		u.pwdStored = stored;
 		u.saltB64 = Base64.getEncoder().encodeToString(salt);
 		u.totpSecretBase32 = secret;
-		store.put(u);
+		u.scryptN = kp.scryptN();
+		u.scryptR = kp.scryptR();
+		u.scryptP = kp.scryptP();
+		// dois cadastros paralelos com o mesmo nome: só o primeiro vence
+		if (!store.putIfAbsent(u)) {
+			send(ex, 409, "{\"error\":\"usuario existe\"}");
+			return;
+		}
 
 		String otpauthUri = String.format("otpauth://totp/%s:%s?secret=%s&issuer=%s&digits=6&period=30",
 				TOTP_APP, req.username(), secret, TOTP_APP);
 
 		RegisterResp resp = new RegisterResp("ok", TOTP_APP, req.username(), secret, otpauthUri, dataUri);
-		send(ex, 200, gson.toJson(resp));
+		sendJson(ex, 200, resp);
 	}
 
-	private static void doLogin(HttpExchange ex) throws IOException {
+	private static void doLogin(HttpExchange ex) throws Exception {
+		if (limited(ex, ipLimit, clientIp(ex)))
+			return;
 		LoginReq req = read(ex, LoginReq.class);
+		if (limited(ex, userLimit, req.username()))
+			return;
 		UserStore.UserRec u = store.get(req.username());
-		if (u == null || !PasswordHasher.verify(u.pwdStored, req.password())) {
+		if (u == null || !kdf.call(() -> {
+			long t0 = System.nanoTime();
+			try {
+				return PasswordHasher.verify(u.pwdStored, req.password());
+			} finally {
+				Metrics.KDF_VERIFY.record(System.nanoTime() - t0);
+			}
+		})) {
 			send(ex, 401, "{\"ok\":false,\"message\":\"login invalido\"}");
 			return;
 		}
-		// retorna parâmetros do KDF e salt (para cifrar no cliente)
-		send(ex, 200, gson.toJson(new LoginResp(true, "ok",
-				"scrypt", 1 << 14, 8, 1, 32, u.saltB64, 30, 6)));
+		if (kdfParams.needsRehash(u.pwdStored))
+			rehashLater(u.username, u.pwdStored, req.password());
+		// retorna parâmetros do KDF e salt (para cifrar no cliente); os do cadastro, nunca os calibrados agora
+		sendJson(ex, 200, new LoginResp(true, "ok", "scrypt", u.scryptN == 0 ? 1 << 14 : u.scryptN,
+				u.scryptR == 0 ? 8 : u.scryptR, u.scryptP == 0 ? 1 : u.scryptP, 32, u.saltB64, 30, 6));
+	}
+
+	// senha acabou de conferir: gera o hash com os parâmetros atuais fora do caminho da resposta
+	private static void rehashLater(String user, String old, String password) {
+		if (!rehashing.add(user))
+			return;
+		try {
+			rehash.execute(() -> {
+				try {
+					String stored = PasswordHasher.hashForStorage(password, PasswordHasher.randomSalt(),
+							kdfParams.current().pbkdf2Iter());
+					if (store.replacePassword(user, old, stored))
+						rehashed.increment();
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					rehashing.remove(user);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rehashing.remove(user);
+		}
 	}
 
 	private static void doVerify(HttpExchange ex) throws IOException {
+		if (limited(ex, ipLimit, clientIp(ex)))
+			return;
 		TotpReq req = read(ex, TotpReq.class);
+		if (limited(ex, userLimit, req.username()))
+			return;
 		UserStore.UserRec u = store.get(req.username());
-		boolean ok = (u != null) && totp.verify(u.totpSecretBase32, req.code());
+		long t0 = System.nanoTime();
+		boolean ok = (u != null) && totp.verify(req.username(), u.totpSecretBase32, req.code());
+		Metrics.TOTP_VERIFY.record(System.nanoTime() - t0);
 		if (!ok) {
-			send(ex, 401, gson.toJson(new TotpResp(false, null, "totp invalido")));
+			sendJson(ex, 401, new TotpResp(false, null, "totp invalido"));
 			return;
 		}
-		String token = UUID.randomUUID().toString();
-		sessions.put(token, req.username());
-		send(ex, 200, gson.toJson(new TotpResp(true, token, "ok")));
+		String token = sessions.create(req.username());
+		if (token == null) {
+			sendJson(ex, 503, new TotpResp(false, null, "limite de sessoes atingido"));
+			return;
+		}
+		sendJson(ex, 200, new TotpResp(true, token, "ok"));
+	}
+
+	// antes de qualquer hash: 429 com Retry-After quando o balde da chave esvaziou
+	private static boolean limited(HttpExchange ex, RateLimiter l, String key) throws IOException {
+		long wait = l.acquire(key);
+		if (wait == 0)
+			return false;
+		ex.getResponseHeaders().add("Retry-After", String.valueOf(wait));
+		send(ex, 429, "{\"error\":\"muitas tentativas, aguarde " + wait + " s\"}");
+		return true;
+	}
+
+	private static String clientIp(HttpExchange ex) {
+		return ex.getRemoteAddress().getAddress().getHostAddress();
+	}
+
+	private static void doLogout(HttpExchange ex) throws IOException {
+		sessions.invalidate(ex.getRequestHeaders().getFirst("X-Session-Token"));
+		send(ex, 200, "{\"ok\":true}");
 	}
 
 	private static void doUpload(HttpExchange ex) throws IOException {
@@ -92,29 +210,454 @@ public final class Server {
 			send(ex, 401, "{\"error\":\"sem sessao\"}");
 			return;
 		}
-		UploadReq req = read(ex, UploadReq.class);
+		String name;
+		BlobStore.Blob blob;
+		String raw = pathName(ex, "/upload/");
+		if (raw != null) {
+			// POST /upload/<nome>: corpo é o ciphertext cru, gravado em streaming
+			name = raw;
+			try (InputStream in = ex.getRequestBody()) {
+				blob = blobs.put(in);
+			}
+		} else {
+			UploadReq req = read(ex, UploadReq.class);
+			name = req.filename();
+			blob = blobs.put(Base64.getDecoder().decode(req.dataB64()));
+		}
 		UserStore.StoredFile sf = new UserStore.StoredFile();
-		sf.name = req.filename();
-		sf.b64 = req.dataB64();
+		sf.name = name;
+		sf.sha256 = blob.sha256();
+		sf.size = blob.size();
 		sf.ts = System.currentTimeMillis();
 		store.putFile(user, sf);
 		send(ex, 200, "{\"ok\":true}");
 	}
 
+	/**
+	 * POST /uploads?filename=&size= abre; PUT /uploads/{id} com Upload-Offset anexa;
+	 * GET /uploads/{id} devolve o offset confirmado. O PUT que completa o tamanho grava o arquivo.
+	 * Passar do limite do usuário no POST dá 429 (uploads abertos) ou 413 (bytes declarados).
+	 */
+	private static void doResumable(HttpExchange ex) throws Exception {
+		String user = auth(ex);
+		if (user == null) {
+			send(ex, 401, "{\"error\":\"sem sessao\"}");
+			return;
+		}
+		String id = pathName(ex, "/uploads/");
+		String method = ex.getRequestMethod();
+		if (id == null) {
+			Map<String, String> q = splitQuery(ex.getRequestURI());
+			String name = q.get("filename");
+			long size = parseLong(q.get("size"));
+			if (!"POST".equals(method) || name == null || name.isEmpty() || size < 0) {
+				send(ex, 400, "{\"error\":\"use POST /uploads?filename=&size=\"}");
+				return;
+			}
+			ResumableUploads.Upload u;
+			try {
+				u = uploads.create(user, name, size);
+			} catch (ResumableUploads.LimitExceeded e) {
+				send(ex, e.status, "{\"error\":\"" + e.getMessage() + "\"}");
+				return;
+			}
+			u.lock.lock();
+			try {
+				if (size == 0)
+					finish(user, u);
+				sendJson(ex, 200, status(u, 0));
+			} finally {
+				u.lock.unlock();
+			}
+			return;
+		}
+		ResumableUploads.Upload u = uploads.get(user, id);
+		if (u == null) {
+			send(ex, 404, "{\"error\":\"upload nao encontrado\"}");
+			return;
+		}
+		if ("GET".equals(method)) {
+			sendJson(ex, 200, status(u, uploads.offset(u)));
+			return;
+		}
+		if (!"PUT".equals(method)) {
+			send(ex, 405, "{\"error\":\"metodo\"}");
+			return;
+		}
+		// a conexão anterior pode ainda estar gravando; espera um pouco antes de recusar
+		if (!u.lock.tryLock(5, TimeUnit.SECONDS)) {
+			sendJson(ex, 409, status(u, uploads.offset(u)));
+			return;
+		}
+		try {
+			long cur = uploads.offset(u);
+			long off = parseLong(ex.getRequestHeaders().getFirst("Upload-Offset"));
+			long len = contentLength(ex.getRequestHeaders());
+			if (off != cur || u.committedAt != 0) {
+				sendJson(ex, u.committedAt != 0 ? 200 : 409, status(u, cur));
+				return;
+			}
+			if (cur + len > u.meta.size()) {
+				sendJson(ex, 413, status(u, cur));
+				return;
+			}
+			long end;
+			try (InputStream in = ex.getRequestBody()) {
+				end = uploads.append(u, in);
+			}
+			if (end == u.meta.size())
+				finish(user, u);
+			sendJson(ex, 200, status(u, end));
+		} finally {
+			u.lock.unlock();
+		}
+	}
+
+	private static void finish(String user, ResumableUploads.Upload u) throws IOException {
+		BlobStore.Blob blob = uploads.commit(u);
+		UserStore.StoredFile sf = new UserStore.StoredFile();
+		sf.name = u.meta.name();
+		sf.sha256 = blob.sha256();
+		sf.size = blob.size();
+		sf.ts = System.currentTimeMillis();
+		store.putFile(user, sf);
+	}
+
+	private static UploadStatus status(ResumableUploads.Upload u, long offset) {
+		return new UploadStatus(u.id, offset, u.meta.size(), offset == u.meta.size());
+	}
+
 	private static void doDownload(HttpExchange ex) throws IOException {
 		String user = auth(ex);
 		if (user == null) {
 			send(ex, 401, "{\"error\":\"sem sessao\"}");
 			return;
 		}
-		Map<String, String> q = splitQuery(ex.getRequestURI());
-		String name = q.get("filename");
+		String raw = pathName(ex, "/download/");
+		String name = raw != null ? raw : splitQuery(ex.getRequestURI()).get("filename");
 		UserStore.StoredFile sf = store.getFile(user, name);
 		if (sf == null) {
 			send(ex, 404, "{\"error\":\"nao encontrado\"}");
 			return;
 		}
-		send(ex, 200, gson.toJson(new DownloadResp(sf.name, sf.b64)));
+		if (sf.chunks != null) {
+			send(ex, 409, "{\"error\":\"arquivo em chunks, use /sync/manifest\",\"chunked\":true}");
+			return;
+		}
+		if (raw != null)
+			sendBlob(ex, sf);
+		else
+			sendDownload(ex, sf);
+	}
+
+	/**
+	 * GET /download/<nome>: ciphertext cru, do arquivo direto para o socket; aceita Range de um intervalo.
+	 * O ETag forte é o sha256 do conteúdo: com If-None-Match igual responde 304 sem corpo, e o cache
+	 * do cliente decifra a cópia que já tem.
+	 */
+	private static void sendBlob(HttpExchange ex, UserStore.StoredFile sf) throws IOException {
+		String etag = "\"" + sf.sha256 + "\"";
+		Headers h = ex.getResponseHeaders();
+		h.add("Accept-Ranges", "bytes");
+		if (notModified(ex, etag))
+			return;
+		h.add("Content-Type", "application/octet-stream");
+		long[] range = range(ex.getRequestHeaders(), etag, sf.size);
+		if (range != null && range.length == 0) {
+			h.add("Content-Range", "bytes */" + sf.size);
+			ex.sendResponseHeaders(416, -1);
+			ex.close();
+			return;
+		}
+		long from = range == null ? 0 : range[0];
+		long len = range == null ? sf.size : range[1] - range[0] + 1;
+		if (range != null)
+			h.add("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + sf.size);
+		ex.sendResponseHeaders(range == null ? 200 : 206, len == 0 ? -1 : len);
+		try (OutputStream os = ex.getResponseBody()) {
+			blobs.transferTo(sf.sha256, from, len, os);
+		}
+	}
+
+	/**
+	 * Intervalo pedido em {@code Range} ("bytes=a-b", "bytes=a-" ou "bytes=-n").
+	 * null = responde o arquivo inteiro (sem Range, If-Range de outra versão, vários intervalos ou sintaxe inválida);
+	 * vazio = 416.
+	 */
+	private static long[] range(Headers req, String etag, long size) {
+		String r = req.getFirst("Range");
+		if (r == null || !r.startsWith("bytes=") || r.indexOf(',') >= 0)
+			return null;
+		String ifRange = req.getFirst("If-Range");
+		if (ifRange != null && !ifRange.equals(etag))
+			return null;
+		String spec = r.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+			return null;
+		long a = dash == 0 ? -1 : parseLong(spec.substring(0, dash));
+		long b = dash == spec.length() - 1 ? -1 : parseLong(spec.substring(dash + 1));
+		if (dash == 0) {
+			// sufixo: últimos b bytes
+			if (b < 0)
+				return null;
+			return b == 0 || size == 0 ? new long[0] : new long[] { Math.max(0, size - b), size - 1 };
+		}
+		if (a < 0 || (dash < spec.length() - 1 && b < a))
+			return null;
+		if (a >= size)
+			return new long[0];
+		return new long[] { a, b < 0 ? size - 1 : Math.min(b, size - 1) };
+	}
+
+	// -1 se ausente ou inválido
+	private static long parseLong(String v) {
+		if (v == null)
+			return -1;
+		try {
+			long n = Long.parseLong(v.trim());
+			return n < 0 ? -1 : n;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// mesmo JSON de DownloadResp, mas o base64 é gerado direto do disco para o socket
+	private static void sendDownload(HttpExchange ex, UserStore.StoredFile sf) throws IOException {
+		// outra representação do mesmo conteúdo: ETag forte próprio, para não casar com o do blob cru
+		if (notModified(ex, "\"" + sf.sha256 + ".json\""))
+			return;
+		byte[] head = ("{\"filename\":" + Json.toJson(sf.name) + ",\"dataB64\":\"").getBytes(StandardCharsets.UTF_8);
+		byte[] tail = "\"}".getBytes(StandardCharsets.UTF_8);
+		long b64Len = 4 * ((sf.size + 2) / 3);
+		ex.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+		ex.sendResponseHeaders(200, head.length + b64Len + tail.length);
+		try (OutputStream os = ex.getResponseBody()) {
+			os.write(head);
+			// o close do encoder escreve o padding; o FilterOutputStream evita fechar o socket junto
+			try (OutputStream enc = Base64.getEncoder().wrap(new FilterOutputStream(os) {
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			})) {
+				blobs.copyTo(sf.sha256, enc);
+			}
+			os.write(tail);
+		}
+	}
+
+	/**
+	 * GET /files?prefix=&sort=name|ts|size&order=asc|desc&limit=&cursor= lista só os metadados,
+	 * paginando pelos índices ordenados do UserStore. O cursor é opaco: a chave de ordenação do
+	 * último item da página, e só vale para a mesma ordem.
+	 */
+	private static void doFiles(HttpExchange ex) throws IOException {
+		String user = auth(ex);
+		if (user == null) {
+			send(ex, 401, "{\"error\":\"sem sessao\"}");
+			return;
+		}
+		Map<String, String> q = splitQuery(ex.getRequestURI());
+		UserStore.FileSort sort;
+		try {
+			sort = UserStore.FileSort.valueOf(q.getOrDefault("sort", "name").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			send(ex, 400, "{\"error\":\"sort deve ser name, ts ou size\"}");
+			return;
+		}
+		String order = q.getOrDefault("order", "asc");
+		if (!order.equals("asc") && !order.equals("desc")) {
+			send(ex, 400, "{\"error\":\"order deve ser asc ou desc\"}");
+			return;
+		}
+		long limit = q.containsKey("limit") ? parseLong(q.get("limit")) : FILES_PAGE;
+		if (limit < 1) {
+			send(ex, 400, "{\"error\":\"limit invalido\"}");
+			return;
+		}
+		UserStore.StoredFile after = null;
+		if (q.get("cursor") != null && !q.get("cursor").isEmpty()) {
+			after = decodeCursor(q.get("cursor"), sort);
+			if (after == null) {
+				send(ex, 400, "{\"error\":\"cursor invalido para esta ordem\"}");
+				return;
+			}
+		}
+		int n = (int) Math.min(limit, FILES_MAX_PAGE);
+		// um a mais só para saber se existe próxima página
+		List<UserStore.StoredFile> page = store.listFiles(user, q.get("prefix"), sort, order.equals("desc"), after, n + 1);
+		String next = null;
+		if (page.size() > n) {
+			page = page.subList(0, n);
+			next = encodeCursor(page.get(n - 1), sort);
+		}
+		List<FileInfo> files = new ArrayList<>(page.size());
+		for (UserStore.StoredFile sf : page)
+			files.add(new FileInfo(sf.name, sf.size, sf.ts, sf.chunks != null));
+		sendJson(ex, 200, new FileList(files, next));
+	}
+
+	// "n|nome", "t|ts|nome" ou "s|tamanho|nome" em base64url
+	private static String encodeCursor(UserStore.StoredFile sf, UserStore.FileSort sort) {
+		String k = switch (sort) {
+		case NAME -> "n|" + sf.name;
+		case TS -> "t|" + sf.ts + "|" + sf.name;
+		case SIZE -> "s|" + sf.size + "|" + sf.name;
+		};
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(k.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// null se malformado ou de outra ordem
+	private static UserStore.StoredFile decodeCursor(String c, UserStore.FileSort sort) {
+		String k;
+		try {
+			k = new String(Base64.getUrlDecoder().decode(c), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		String[] p = k.split("\\|", sort == UserStore.FileSort.NAME ? 2 : 3);
+		if (p.length != (sort == UserStore.FileSort.NAME ? 2 : 3) || !p[0].equals(sort.name().substring(0, 1).toLowerCase()))
+			return null;
+		UserStore.StoredFile probe = new UserStore.StoredFile();
+		probe.name = p[p.length - 1];
+		if (sort != UserStore.FileSort.NAME) {
+			long v = parseLong(p[1]);
+			if (v < 0)
+				return null;
+			if (sort == UserStore.FileSort.TS)
+				probe.ts = v;
+			else
+				probe.size = v;
+		}
+		return probe;
+	}
+
+	/**
+	 * Delta sync: POST /sync/missing diz quais chunks faltam, POST /sync/chunk/{id} envia um e
+	 * POST /sync/commit grava o manifesto; GET /sync/manifest/{nome} e GET /sync/chunk/{id} para baixar.
+	 */
+	private static void doSync(HttpExchange ex) throws IOException {
+		String user = auth(ex);
+		if (user == null) {
+			send(ex, 401, "{\"error\":\"sem sessao\"}");
+			return;
+		}
+		String path = ex.getRequestURI().getRawPath();
+		String chunkId = pathName(ex, "/sync/chunk/");
+		String manifest = pathName(ex, "/sync/manifest/");
+		if (chunkId != null) {
+			if (!isChunkId(chunkId)) {
+				send(ex, 400, "{\"error\":\"id de chunk invalido\"}");
+				return;
+			}
+			if ("POST".equals(ex.getRequestMethod())) {
+				BlobStore.Blob blob;
+				try (InputStream in = ex.getRequestBody()) {
+					blob = blobs.put(in);
+				}
+				UserStore.Chunk c = new UserStore.Chunk();
+				c.id = chunkId;
+				c.sha256 = blob.sha256();
+				c.size = blob.size();
+				store.addChunk(user, c);
+				send(ex, 200, "{\"ok\":true}");
+				return;
+			}
+			UserStore.Chunk c = store.getChunk(user, chunkId);
+			if (c == null) {
+				send(ex, 404, "{\"error\":\"chunk nao encontrado\"}");
+				return;
+			}
+			ex.getResponseHeaders().add("Content-Type", "application/octet-stream");
+			ex.sendResponseHeaders(200, c.size == 0 ? -1 : c.size);
+			try (OutputStream os = ex.getResponseBody()) {
+				blobs.transferTo(c.sha256, os);
+			}
+		} else if (manifest != null) {
+			UserStore.StoredFile sf = store.getFile(user, manifest);
+			if (sf == null || sf.chunks == null) {
+				send(ex, 404, "{\"error\":\"manifesto nao encontrado\"}");
+				return;
+			}
+			List<String> ids = new ArrayList<>(sf.chunks.size());
+			List<Long> sizes = new ArrayList<>(sf.chunks.size());
+			for (UserStore.Chunk c : sf.chunks) {
+				ids.add(c.id);
+				sizes.add(c.size);
+			}
+			sendJson(ex, 200, new SyncManifest(sf.name, ids, sizes, sf.mac));
+		} else if (path.equals("/sync/missing")) {
+			SyncMissingReq req = read(ex, SyncMissingReq.class);
+			if (req == null || req.ids() == null) {
+				send(ex, 400, "{\"error\":\"ids ausentes\"}");
+				return;
+			}
+			sendJson(ex, 200, new SyncMissingResp(store.missingChunks(user, req.ids())));
+		} else if (path.equals("/sync/commit")) {
+			SyncCommitReq req = read(ex, SyncCommitReq.class);
+			if (req == null || req.filename() == null || req.filename().isEmpty() || req.chunks() == null) {
+				send(ex, 400, "{\"error\":\"filename e chunks obrigatorios\"}");
+				return;
+			}
+			List<String> missing = new ArrayList<>();
+			List<UserStore.Chunk> chunks = store.resolveChunks(user, req.chunks(), missing);
+			if (chunks == null) {
+				// algum chunk sumiu entre o missing e o commit (reinício, ou usuário saiu do cache): o cliente manda de novo
+				sendJson(ex, 409, new SyncMissingResp(missing));
+				return;
+			}
+			UserStore.StoredFile sf = new UserStore.StoredFile();
+			sf.name = req.filename();
+			sf.chunks = chunks;
+			for (UserStore.Chunk c : chunks)
+				sf.size += c.size;
+			sf.mac = req.mac();
+			sf.ts = System.currentTimeMillis();
+			store.putFile(user, sf);
+			send(ex, 200, "{\"ok\":true}");
+		} else {
+			send(ex, 404, "{\"error\":\"nao encontrado\"}");
+		}
+	}
+
+	// HMAC-SHA256 em hex
+	private static boolean isChunkId(String id) {
+		if (id.length() != 64)
+			return false;
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+		return true;
+	}
+
+	private static void doKdfStats(HttpExchange ex) throws IOException {
+		sendJson(ex, 200, kdf.stats());
+	}
+
+	// GET mostra os parâmetros em uso; POST (só da própria máquina) pede uma medida nova em segundo plano
+	// e responde na hora com os atuais: 202 se começou, 200 se já havia uma rodando ou acabou de rodar
+	private static void doKdfParams(HttpExchange ex) throws IOException {
+		if ("POST".equals(ex.getRequestMethod())) {
+			if (!ex.getRemoteAddress().getAddress().isLoopbackAddress()) {
+				send(ex, 403, "{\"error\":\"so localmente\"}");
+				return;
+			}
+			sendJson(ex, kdfParams.calibrateInBackground() ? 202 : 200, kdfParams.current());
+			return;
+		}
+		sendJson(ex, 200, kdfParams.current());
+	}
+
+	private static void doMetrics(HttpExchange ex) throws IOException {
+		byte[] b = Metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		ex.sendResponseHeaders(200, b.length);
+		try (OutputStream os = ex.getResponseBody()) {
+			os.write(b);
+		}
 	}
 
 	private static void doQr(HttpExchange ex) throws IOException {
@@ -125,7 +668,11 @@ public final class Server {
 			ex.sendResponseHeaders(404, -1);
 			return;
 		}
-		byte[] png = totp.qrPng(user, u.totpSecretBase32);
+		TotpService.QrImage img = totp.qrImage(user, u.totpSecretBase32);
+		// no-cache: o navegador pode guardar, mas revalida; se o segredo mudar o ETag muda junto
+		if (notModified(ex, img.etag()))
+			return;
+		byte[] png = img.png();
 		ex.getResponseHeaders().add("Content-Type", "image/png");
 		ex.sendResponseHeaders(200, png.length);
 		try (OutputStream os = ex.getResponseBody()) {
@@ -133,18 +680,65 @@ public final class Server {
 		}
 	}
 
+	// põe ETag e Cache-Control; se o If-None-Match casa, já responde 304 e devolve true
+	private static boolean notModified(HttpExchange ex, String etag) throws IOException {
+		Headers h = ex.getResponseHeaders();
+		h.add("ETag", etag);
+		h.add("Cache-Control", "private, no-cache");
+		if (!etagMatches(ex.getRequestHeaders().getFirst("If-None-Match"), etag))
+			return false;
+		ex.sendResponseHeaders(304, -1);
+		ex.close();
+		return true;
+	}
+
 	// util
+	private static boolean etagMatches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String t : ifNoneMatch.split(",")) {
+			t = t.trim();
+			if (t.startsWith("W/"))
+				t = t.substring(2);
+			if (t.equals("*") || t.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	// "/upload/a%20b.txt" -> "a b.txt"; null se a requisição não usa o nome no path
+	private static String pathName(HttpExchange ex, String prefix) {
+		String p = ex.getRequestURI().getRawPath();
+		if (!p.startsWith(prefix) || p.length() == prefix.length())
+			return null;
+		return URLDecoder.decode(p.substring(prefix.length()), StandardCharsets.UTF_8);
+	}
+
 	private static String auth(HttpExchange ex) {
 		String token = ex.getRequestHeaders().getFirst("X-Session-Token");
-		return sessions.get(token);
+		return sessions.user(token);
 	}
 
 	private static <T> T read(HttpExchange ex, Class<T> cls) throws IOException {
-		try (Reader r = new InputStreamReader(ex.getRequestBody(), StandardCharsets.UTF_8)) {
-			return new Gson().fromJson(r, cls);
+		try (InputStream in = ex.getRequestBody()) {
+			long t0 = System.nanoTime();
+			T v = Json.read(in, cls);
+			Metrics.JSON_PARSE.record(System.nanoTime() - t0);
+			return v;
 		}
 	}
 
+	/** Serializa {@code body} direto na resposta, sem String nem byte[] intermediários. */
+	private static void sendJson(HttpExchange ex, int code, Object body) throws IOException {
+		ex.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+		// sem try-with-resources: se a serialização falhar nada foi enviado e o j() ainda pode responder 500
+		JsonBody out = new JsonBody(ex, code);
+		long t0 = System.nanoTime();
+		Json.write(out, body);
+		Metrics.JSON_SERIALIZE.record(System.nanoTime() - t0);
+		out.close();
+	}
+
 	private static void send(HttpExchange ex, int code, String body) throws IOException {
 		ex.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
 		byte[] b = body.getBytes(StandardCharsets.UTF_8);
@@ -154,10 +748,93 @@ public final class Server {
 		}
 	}
 
+	/**
+	 * Corpo de resposta que junta até {@code http.jsonBuffer} bytes (padrão 16 KiB) para mandar com
+	 * Content-Length; se passar disso (uma página grande de /files), manda os headers como chunked e
+	 * segue escrevendo direto no socket.
+	 */
+	private static final class JsonBody extends OutputStream {
+		private final HttpExchange ex;
+		private final int code;
+		private byte[] buf = new byte[Math.min(512, JSON_BUFFER)];
+		private int n;
+		private OutputStream out;
+
+		JsonBody(HttpExchange ex, int code) {
+			this.ex = ex;
+			this.code = code;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (out == null && n + len > buf.length) {
+				if (n + len <= JSON_BUFFER)
+					buf = Arrays.copyOf(buf, Math.min(JSON_BUFFER, Math.max(buf.length * 2, n + len)));
+				else {
+					ex.sendResponseHeaders(code, 0);
+					out = ex.getResponseBody();
+					out.write(buf, 0, n);
+				}
+			}
+			if (out != null)
+				out.write(b, off, len);
+			else {
+				System.arraycopy(b, off, buf, n, len);
+				n += len;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out == null) {
+				ex.sendResponseHeaders(code, n);
+				out = ex.getResponseBody();
+				out.write(buf, 0, n);
+			}
+			out.close();
+		}
+	}
+
+	// conta requisições, status, bytes e latência por contexto; Content-length já vem normalizado, sem alocar
+	private static void route(HttpServer s, String path, HttpHandler h) {
+		Metrics.Endpoint m = Metrics.endpoint(path);
+		s.createContext(path, ex -> {
+			long t0 = System.nanoTime();
+			try {
+				if (RequestExecutor.shed())
+					busy(ex, 1);
+				else
+					h.handle(ex);
+			} finally {
+				m.record(ex.getResponseCode(), contentLength(ex.getRequestHeaders()),
+						contentLength(ex.getResponseHeaders()), System.nanoTime() - t0);
+			}
+		});
+	}
+
+	private static long contentLength(Headers h) {
+		String v = h.getFirst("Content-length");
+		if (v == null)
+			return 0;
+		try {
+			return Long.parseLong(v);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	private static HttpHandler j(ThrowingHandler h) {
 		return ex -> {
 			try {
 				h.handle(ex);
+			} catch (RejectedExecutionException e) {
+				// fila do KDF cheia: melhor recusar já do que deixar a latência crescer sem limite
+				busy(ex, kdf.retryAfterSeconds());
 			} catch (Exception e) {
 				e.printStackTrace();
 				String msg = "{\"error\":\"" + e.getClass().getSimpleName() + ": " + e.getMessage() + "\"}";
@@ -166,6 +843,12 @@ public final class Server {
 		};
 	}
 
+	// sem vaga no executor ou na fila do KDF
+	private static void busy(HttpExchange ex, long retryAfter) throws IOException {
+		ex.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+		send(ex, 503, "{\"error\":\"servidor ocupado\"}");
+	}
+
 	@FunctionalInterface private interface ThrowingHandler {
 		void handle(HttpExchange ex) throws Exception;
 	}
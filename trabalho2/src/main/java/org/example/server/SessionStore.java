@@ -0,0 +1,263 @@
+package org.example.server;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sessões (token -> usuário) com TTL. Consulta sem lock (ConcurrentHashMap),
+ * expiração em lote por uma timing wheel: a cada tick só os tokens agendados
+ * para aquele slot são examinados, nunca o mapa inteiro.
+ */
+public final class SessionStore implements Sessions {
+	public enum Expiry {
+		SLIDING, ABSOLUTE
+	}
+
+	static final class Session {
+		final String token;
+		final String user;
+		final long createdAt;
+		volatile long expiresAt;
+
+		Session(String token, String user, long createdAt, long expiresAt) {
+			this.token = token;
+			this.user = user;
+			this.createdAt = createdAt;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// formato do arquivo de persistência
+	private record Saved(String token, String user, long createdAt, long expiresAt) {
+	}
+
+	private static final int WHEEL_SLOTS = 512;
+
+	private final ConcurrentHashMap<String, Session> byToken = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ConcurrentLinkedDeque<String>> byUser = new ConcurrentHashMap<>();
+	private final AtomicInteger count = new AtomicInteger();
+	private final long ttlMs;
+	private final long maxLifetimeMs;
+	private final Expiry expiry;
+	private final int maxPerUser;
+	private final int maxTotal;
+	private final Path file;
+	private final Gson gson = new Gson();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ConcurrentLinkedQueue<String>[] wheel = new ConcurrentLinkedQueue[WHEEL_SLOTS];
+	private final long tickMs;
+	private volatile long processedTick; // só a thread do scheduler escreve
+	private final ScheduledExecutorService timer;
+
+	public SessionStore(long ttlMs, long maxLifetimeMs, Expiry expiry, int maxPerUser, int maxTotal, Path file) {
+		this.ttlMs = ttlMs;
+		this.maxLifetimeMs = maxLifetimeMs;
+		this.expiry = expiry;
+		this.maxPerUser = maxPerUser;
+		this.maxTotal = maxTotal;
+		this.file = file;
+		// uma volta da roda cobre ~ttl; entradas mais distantes são reagendadas quando o slot passa
+		this.tickMs = Math.max(1000, ttlMs / WHEEL_SLOTS);
+		for (int i = 0; i < WHEEL_SLOTS; i++)
+			wheel[i] = new ConcurrentLinkedQueue<>();
+		this.processedTick = System.currentTimeMillis() / tickMs;
+		load();
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "session-expiry");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(this::expireDue, tickMs, tickMs, TimeUnit.MILLISECONDS);
+		if (file != null) {
+			timer.scheduleWithFixedDelay(this::save, 30, 30, TimeUnit.SECONDS);
+			Runtime.getRuntime().addShutdownHook(new Thread(this::save, "session-save"));
+		}
+	}
+
+	/**
+	 * Propriedades: {@code session.ttl} e {@code session.maxLifetime} (segundos),
+	 * {@code session.expiry} (sliding|absolute), {@code session.maxPerUser}, {@code session.max}
+	 * e {@code session.file} (se definido, as sessões sobrevivem a um restart).
+	 */
+	public static SessionStore fromSystemProperties() {
+		String f = System.getProperty("session.file");
+		return new SessionStore(
+				Long.getLong("session.ttl", 30 * 60) * 1000,
+				Long.getLong("session.maxLifetime", 12 * 60 * 60) * 1000,
+				Expiry.valueOf(System.getProperty("session.expiry", "sliding").toUpperCase()),
+				Integer.getInteger("session.maxPerUser", 8),
+				Integer.getInteger("session.max", 100_000),
+				f == null ? null : Path.of(f));
+	}
+
+	/**
+	 * Cria uma sessão para {@code user}. Se o usuário já tem {@code maxPerUser} sessões, a mais antiga cai.
+	 *
+	 * @return o token, ou null se o limite global foi atingido
+	 */
+	@Override
+	public String create(String user) {
+		if (count.incrementAndGet() > maxTotal) {
+			count.decrementAndGet();
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		String token = UUID.randomUUID().toString();
+		Session s = new Session(token, user, now, Math.min(now + ttlMs, now + maxLifetimeMs));
+		byToken.put(token, s);
+		// compute/computeIfPresent por usuário: a deque nunca é descartada com um token recém-adicionado
+		ConcurrentLinkedDeque<String> mine = byUser.compute(user, (k, d) -> {
+			if (d == null)
+				d = new ConcurrentLinkedDeque<>();
+			d.addLast(token);
+			return d;
+		});
+		while (mine.size() > maxPerUser) {
+			String oldest = mine.pollFirst();
+			if (oldest != null)
+				remove(oldest);
+		}
+		schedule(token, s.expiresAt);
+		return token;
+	}
+
+	/** Usuário dono do token, ou null se não existe / expirou. No modo sliding renova o prazo. */
+	@Override
+	public String user(String token) {
+		if (token == null)
+			return null;
+		Session s = byToken.get(token);
+		if (s == null)
+			return null;
+		long now = System.currentTimeMillis();
+		if (s.expiresAt <= now) {
+			remove(token);
+			return null;
+		}
+		if (expiry == Expiry.SLIDING)
+			s.expiresAt = Math.min(now + ttlMs, s.createdAt + maxLifetimeMs); // a roda reagenda quando o slot antigo passar
+		return s.user;
+	}
+
+	@Override
+	public void invalidate(String token) {
+		if (token != null)
+			remove(token);
+	}
+
+	@Override
+	public int size() {
+		return count.get();
+	}
+
+	private void remove(String token) {
+		Session s = byToken.remove(token);
+		if (s == null)
+			return;
+		count.decrementAndGet();
+		byUser.computeIfPresent(s.user, (k, d) -> {
+			d.remove(token);
+			return d.isEmpty() ? null : d;
+		});
+	}
+
+	private void schedule(String token, long expiresAt) {
+		long tick = Math.max(expiresAt / tickMs + 1, processedTick + 1);
+		wheel[(int) (tick % WHEEL_SLOTS)].add(token);
+	}
+
+	private void expireDue() {
+		try {
+			long now = System.currentTimeMillis();
+			long nowTick = now / tickMs;
+			for (long t = processedTick + 1; t <= nowTick; t++) {
+				ConcurrentLinkedQueue<String> slot = wheel[(int) (t % WHEEL_SLOTS)];
+				processedTick = t;
+				// só o que já estava no slot: reagendamentos para o mesmo índice ficam para a próxima volta
+				for (int n = slot.size(); n > 0; n--) {
+					String token = slot.poll();
+					if (token == null)
+						break;
+					Session s = byToken.get(token);
+					if (s == null)
+						continue;
+					if (s.expiresAt <= now)
+						remove(token);
+					else
+						schedule(token, s.expiresAt);
+				}
+			}
+		} catch (Exception e) {
+			System.err.println("sessoes: " + e);
+		}
+	}
+
+	private void load() {
+		if (file == null || !Files.exists(file))
+			return;
+		try (Reader rd = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			List<Saved> list = gson.fromJson(rd, new TypeToken<List<Saved>>() {
+			}.getType());
+			long now = System.currentTimeMillis();
+			if (list == null)
+				return;
+			for (Saved sv : list) {
+				if (sv.expiresAt() <= now || count.get() >= maxTotal)
+					continue;
+				byToken.put(sv.token(), new Session(sv.token(), sv.user(), sv.createdAt(), sv.expiresAt()));
+				byUser.computeIfAbsent(sv.user(), k -> new ConcurrentLinkedDeque<>()).addLast(sv.token());
+				count.incrementAndGet();
+				schedule(sv.token(), sv.expiresAt());
+			}
+		} catch (Exception e) {
+			System.err.println("sessoes: ignorando " + file + ": " + e);
+		}
+	}
+
+	private synchronized void save() {
+		if (file == null)
+			return;
+		List<Saved> list = new ArrayList<>(byToken.size());
+		long now = System.currentTimeMillis();
+		for (Session s : byToken.values())
+			if (s.expiresAt > now)
+				list.add(new Saved(s.token, s.user, s.createdAt, s.expiresAt));
+		Path dir = file.toAbsolutePath().getParent();
+		Path tmp = null;
+		try {
+			// tokens válidos em claro: só o dono lê, desde a criação (o move leva a permissão junto)
+			try {
+				tmp = Files.createTempFile(dir, "sessions-", ".tmp",
+						PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			} catch (UnsupportedOperationException e) {
+				tmp = Files.createTempFile(dir, "sessions-", ".tmp"); // sistema de arquivos sem permissões POSIX
+			}
+			try (Writer wr = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				gson.toJson(list, wr);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("sessoes: falha ao gravar " + file + ": " + e);
+			if (tmp != null)
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException ignored) {
+				}
+		}
+	}
+
+	@Override
+	public void close() {
+		timer.shutdownNow();
+		save();
+	}
+}
@@ -0,0 +1,32 @@
+package org.example.server;
+
+import java.io.Closeable;
+
+/** Tokens de sessão do {@code X-Session-Token}: guardados neste processo ou assinados e sem estado. */
+public interface Sessions extends Closeable {
+	/** @return o token, ou null se não dá para abrir mais sessões agora */
+	String create(String user);
+
+	/** Usuário dono do token, ou null se não existe, expirou ou foi revogado. */
+	String user(String token);
+
+	void invalidate(String token);
+
+	/** Sessões ativas no modo local; revogações ainda no prazo no modo assinado. */
+	int size();
+
+	@Override
+	void close();
+
+	/**
+	 * {@code session.mode}: "local" (padrão, {@link SessionStore}) ou "signed" ({@link SignedSessions},
+	 * para vários nós atrás de um balanceador).
+	 */
+	static Sessions fromSystemProperties() {
+		return switch (System.getProperty("session.mode", "local")) {
+		case "local" -> SessionStore.fromSystemProperties();
+		case "signed" -> SignedSessions.fromSystemProperties();
+		default -> throw new IllegalArgumentException("session.mode deve ser local ou signed");
+		};
+	}
+}
@@ -0,0 +1,286 @@
+package org.example.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sessões sem estado: o token {@code kid.payload.mac} carrega validade, um id aleatório e o usuário,
+ * assinado com HMAC-SHA256 (truncado em 128 bits) pela chave {@code kid}. Qualquer nó com o mesmo
+ * arquivo de chaves valida com um MAC, sem consultar ninguém.
+ * <p>
+ * Rotação: o arquivo tem uma chave por linha ({@code kid base64}); a primeira assina, todas validam.
+ * Para trocar, põe a nova no topo e só tira a antiga depois de um {@code session.ttl}. Cada nó relê o
+ * arquivo quando ele muda.
+ * <p>
+ * Logout: o id do token vai para um arquivo de revogações só de append, que todos os nós acompanham
+ * a cada segundo; a entrada só importa até o token expirar. A validade é absoluta (não desliza) e
+ * não há limite de sessões por usuário, que exigiriam estado compartilhado.
+ */
+public final class SignedSessions implements Sessions {
+	private static final int MAC_LEN = 16;
+	private static final int HEAD = 12; // exp (4, segundos) + id (8)
+	private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder D64 = Base64.getUrlDecoder();
+
+	// Mac já inicializado por kid; cada uso trabalha num clone
+	private record Keys(String signKid, Map<String, Mac> byKid, long mtime) {
+	}
+
+	private final Path keyFile;
+	private final Path revokeFile;
+	private final long ttlMs;
+	private final SecureRandom rnd = new SecureRandom();
+	private final ConcurrentHashMap<Long, Long> revoked = new ConcurrentHashMap<>(); // id -> exp (s)
+	private final ScheduledExecutorService timer;
+	private volatile Keys keys;
+	private long revokeOffset; // só a thread do timer
+
+	/**
+	 * @param keyFile    chaves compartilhadas; criado com uma chave nova se não existe. Null usa uma
+	 *                   chave efêmera, válida só neste processo.
+	 * @param revokeFile revogações compartilhadas; null deixa o logout só neste nó
+	 */
+	public SignedSessions(Path keyFile, Path revokeFile, long ttlMs) throws IOException {
+		this.keyFile = keyFile;
+		this.revokeFile = revokeFile;
+		this.ttlMs = ttlMs;
+		if (keyFile == null) {
+			byte[] k = new byte[32];
+			rnd.nextBytes(k);
+			keys = new Keys("local", Map.of("local", mac(k)), 0);
+		} else {
+			if (!Files.exists(keyFile))
+				createKeyFile();
+			keys = readKeys();
+		}
+		tailRevocations();
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "session-keys");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleWithFixedDelay(this::refresh, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * {@code session.keyFile}, {@code session.revokeFile} (padrão: o de chaves + ".revoked") e
+	 * {@code session.ttl} (segundos, padrão 30 min).
+	 */
+	public static SignedSessions fromSystemProperties() {
+		String kf = System.getProperty("session.keyFile");
+		String rf = System.getProperty("session.revokeFile", kf == null ? null : kf + ".revoked");
+		if (kf == null)
+			System.out.println("session.keyFile ausente: chave efemera, tokens so valem neste processo");
+		try {
+			return new SignedSessions(kf == null ? null : Path.of(kf), rf == null ? null : Path.of(rf),
+					Long.getLong("session.ttl", 30 * 60) * 1000);
+		} catch (IOException e) {
+			throw new IllegalStateException("chaves de sessao: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public String create(String user) {
+		Keys k = keys;
+		byte[] u = user.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer p = ByteBuffer.allocate(HEAD + u.length);
+		p.putInt((int) ((System.currentTimeMillis() + ttlMs) / 1000));
+		p.putLong(rnd.nextLong());
+		p.put(u);
+		String head = k.signKid() + "." + B64.encodeToString(p.array());
+		byte[] mac = copy(k.byKid().get(k.signKid())).doFinal(head.getBytes(StandardCharsets.US_ASCII));
+		return head + "." + B64.encodeToString(Arrays.copyOf(mac, MAC_LEN));
+	}
+
+	@Override
+	public String user(String token) {
+		byte[] p = verify(token);
+		if (p == null)
+			return null;
+		ByteBuffer b = ByteBuffer.wrap(p);
+		long exp = Integer.toUnsignedLong(b.getInt());
+		if (exp * 1000 <= System.currentTimeMillis() || revoked.containsKey(b.getLong()))
+			return null;
+		return new String(p, HEAD, p.length - HEAD, StandardCharsets.UTF_8);
+	}
+
+	/** Revoga até expirar. Token inválido é ignorado, para ninguém encher a lista com lixo. */
+	@Override
+	public void invalidate(String token) {
+		byte[] p = verify(token);
+		if (p == null)
+			return;
+		ByteBuffer b = ByteBuffer.wrap(p);
+		long exp = Integer.toUnsignedLong(b.getInt());
+		long id = b.getLong();
+		if (exp * 1000 <= System.currentTimeMillis() || revoked.putIfAbsent(id, exp) != null)
+			return;
+		if (revokeFile == null)
+			return;
+		// uma linha curta por write com O_APPEND: linhas de nós diferentes não se misturam
+		try {
+			Files.writeString(revokeFile, Long.toHexString(id) + " " + exp + "\n", StandardCharsets.US_ASCII,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int size() {
+		return revoked.size();
+	}
+
+	@Override
+	public void close() {
+		timer.shutdownNow();
+	}
+
+	// payload decodificado se o MAC confere com uma das chaves; null para qualquer token malformado
+	private byte[] verify(String token) {
+		if (token == null)
+			return null;
+		int i = token.indexOf('.');
+		int j = token.lastIndexOf('.');
+		if (i <= 0 || j <= i)
+			return null;
+		Mac m = keys.byKid().get(token.substring(0, i));
+		if (m == null)
+			return null;
+		try {
+			byte[] given = D64.decode(token.substring(j + 1));
+			byte[] p = D64.decode(token.substring(i + 1, j));
+			m = copy(m);
+			for (int c = 0; c < j; c++)
+				m.update((byte) token.charAt(c));
+			byte[] want = Arrays.copyOf(m.doFinal(), MAC_LEN);
+			if (!MessageDigest.isEqual(want, given) || p.length <= HEAD)
+				return null;
+			return p;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private void refresh() {
+		try {
+			long now = System.currentTimeMillis() / 1000;
+			revoked.values().removeIf(exp -> exp <= now);
+			tailRevocations();
+			if (keyFile != null && Files.getLastModifiedTime(keyFile).toMillis() != keys.mtime()) {
+				Keys k = readKeys();
+				if (!k.signKid().equals(keys.signKid()))
+					System.out.println("chave de sessao ativa: " + k.signKid());
+				keys = k;
+			}
+		} catch (Exception e) {
+			// arquivo no meio de uma edição: fica com as chaves de antes e tenta no próximo segundo
+			System.err.println("sessoes: " + e);
+		}
+	}
+
+	// lê só o que foi acrescentado desde a última vez, até a última linha completa
+	private void tailRevocations() throws IOException {
+		if (revokeFile == null || !Files.exists(revokeFile))
+			return;
+		try (FileChannel ch = FileChannel.open(revokeFile, StandardOpenOption.READ)) {
+			long size = ch.size();
+			if (size < revokeOffset)
+				revokeOffset = 0; // truncado por quem administra: relê do começo
+			if (size == revokeOffset)
+				return;
+			ByteBuffer b = ByteBuffer.allocate((int) Math.min(size - revokeOffset, 1 << 20));
+			ch.read(b, revokeOffset);
+			String s = new String(b.array(), 0, b.position(), StandardCharsets.US_ASCII);
+			int end = s.lastIndexOf('\n') + 1;
+			long now = System.currentTimeMillis() / 1000;
+			for (String line : s.substring(0, end).split("\n")) {
+				String[] f = line.trim().split(" ");
+				if (f.length != 2)
+					continue;
+				try {
+					long exp = Long.parseLong(f[1]);
+					if (exp > now)
+						revoked.put(Long.parseUnsignedLong(f[0], 16), exp);
+				} catch (NumberFormatException e) {
+					// linha estragada: ignora
+				}
+			}
+			revokeOffset += end;
+		}
+	}
+
+	private Keys readKeys() throws IOException {
+		long mtime = Files.getLastModifiedTime(keyFile).toMillis();
+		Map<String, Mac> m = new HashMap<>();
+		String sign = null;
+		for (String line : Files.readAllLines(keyFile, StandardCharsets.US_ASCII)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] f = line.split("\\s+");
+			if (f.length != 2 || !f[0].matches("[A-Za-z0-9_-]{1,16}"))
+				throw new IOException("linha invalida em " + keyFile + ": kid base64");
+			byte[] key = Base64.getDecoder().decode(f[1]);
+			if (key.length < 32)
+				throw new IOException("chave " + f[0] + " com menos de 256 bits");
+			m.put(f[0], mac(key));
+			if (sign == null)
+				sign = f[0];
+		}
+		if (sign == null)
+			throw new IOException("nenhuma chave em " + keyFile);
+		return new Keys(sign, Map.copyOf(m), mtime);
+	}
+
+	// grava num temporário e publica com link: dois nós subindo juntos nunca veem o arquivo pela metade,
+	// e o segundo fica com a chave do primeiro
+	private void createKeyFile() throws IOException {
+		byte[] k = new byte[32];
+		rnd.nextBytes(k);
+		Path tmp = Files.createTempFile(keyFile.toAbsolutePath().getParent(), "keys-", ".tmp");
+		try {
+			try {
+				Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+			} catch (UnsupportedOperationException e) {
+				// sistema de arquivos sem permissões POSIX
+			}
+			Files.writeString(tmp, "k1 " + Base64.getEncoder().encodeToString(k) + "\n", StandardCharsets.US_ASCII);
+			Files.createLink(keyFile, tmp);
+		} catch (FileAlreadyExistsException e) {
+			// outro nó criou primeiro
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static Mac mac(byte[] key) {
+		try {
+			Mac m = Mac.getInstance("HmacSHA256");
+			m.init(new SecretKeySpec(key, "HmacSHA256"));
+			return m;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Mac copy(Mac m) {
+		try {
+			return (Mac) m.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
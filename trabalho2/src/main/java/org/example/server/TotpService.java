@@ -1,18 +1,39 @@
 package org.example.server;
 
 import dev.samstevens.totp.code.*;
-import dev.samstevens.totp.time.*;
 import dev.samstevens.totp.qr.*;
 import dev.samstevens.totp.secret.*;
 
+import org.example.common.CryptoUtils;
+
+import java.security.MessageDigest;
+import java.util.*;
+
 /**
  * Serviço TOTP: gera segredo, QR e valida códigos.
  */
 public final class TotpService {
+	/** PNG pronto + ETag forte (SHA-256 truncado do conteúdo). */
+	public record QrImage(byte[] png, String etag) {
+	}
+
+	private record CachedQr(String secret, QrImage img) {
+	}
+
 	private final String issuer;
+	private final TotpVerifier verifier = new TotpVerifier();
+	private final long qrCacheMaxBytes;
+	private long qrCacheBytes;
+	// LRU por conta, limitado pelo total de bytes de PNG; acesso sob o monitor do próprio mapa
+	private final LinkedHashMap<String, CachedQr> qrCache = new LinkedHashMap<>(16, 0.75f, true);
 
 	public TotpService(String issuer) {
+		this(issuer, Long.getLong("totp.qrCacheBytes", 4L << 20));
+	}
+
+	public TotpService(String issuer, long qrCacheMaxBytes) {
 		this.issuer = issuer;
+		this.qrCacheMaxBytes = qrCacheMaxBytes;
 	}
 
 	public String newSecret() {
@@ -21,6 +42,47 @@ public final class TotpService {
 	}
 
 	public byte[] qrPng(String account, String secretBase32) {
+		return qrImage(account, secretBase32).png();
+	}
+
+	/**
+	 * QR da conta, do cache se o segredo for o mesmo da última renderização.
+	 * Segredo diferente (rotação) descarta a entrada antiga e renderiza de novo, então quem troca o
+	 * segredo não precisa invalidar nada: um QR de segredo velho nunca é servido.
+	 */
+	public QrImage qrImage(String account, String secretBase32) {
+		synchronized (qrCache) {
+			CachedQr c = qrCache.get(account);
+			if (c != null && c.secret().equals(secretBase32))
+				return c.img();
+		}
+		// renderiza fora do lock; duas renderizações simultâneas do mesmo QR dão o mesmo PNG
+		byte[] png = renderQr(account, secretBase32);
+		QrImage img = new QrImage(png, etag(png));
+		synchronized (qrCache) {
+			CachedQr old = qrCache.put(account, new CachedQr(secretBase32, img));
+			if (old != null)
+				qrCacheBytes -= old.img().png().length;
+			qrCacheBytes += png.length;
+			Iterator<CachedQr> it = qrCache.values().iterator();
+			while (qrCacheBytes > qrCacheMaxBytes && it.hasNext()) {
+				qrCacheBytes -= it.next().img().png().length;
+				it.remove();
+			}
+		}
+		return img;
+	}
+
+	private static String etag(byte[] png) {
+		try {
+			byte[] h = MessageDigest.getInstance("SHA-256").digest(png);
+			return "\"" + CryptoUtils.toHex(Arrays.copyOf(h, 16)) + "\"";
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private byte[] renderQr(String account, String secretBase32) {
 		try {
 			QrData data = new QrData.Builder()
 					.label(account)
@@ -38,9 +100,11 @@ public final class TotpService {
 	}
 
 	public boolean verify(String secretBase32, String code) {
-		TimeProvider time = new SystemTimeProvider();
-		DefaultCodeVerifier v = new DefaultCodeVerifier(new DefaultCodeGenerator(), time);
-		v.setAllowedTimePeriodDiscrepancy(1); // ±30s
-		return v.isValidCode(secretBase32, code);
+		return verifier.verify(null, secretBase32, code); // ±30s
+	}
+
+	/** Como {@link #verify(String, String)}, mas recusa um código de um time step já aceito para a conta. */
+	public boolean verify(String account, String secretBase32, String code) {
+		return verifier.verify(account, secretBase32, code);
 	}
 }
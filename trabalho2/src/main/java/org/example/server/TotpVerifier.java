@@ -0,0 +1,141 @@
+package org.example.server;
+
+import org.apache.commons.codec.binary.Base32;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Verificação TOTP (SHA1, 6 dígitos, 30 s, ±1 janela) sem alocar por chamada:
+ * a chave decodificada de cada segredo Base32 fica num LRU de até {@code totp.keyCache} entradas
+ * (padrão 10 mil) e os {@link Mac} vêm de um pool. Guarda o último time step aceito por conta para
+ * recusar o mesmo código duas vezes; a entrada sai quando fica mais velha que a janela, porque aí
+ * já não barra nenhum código.
+ */
+final class TotpVerifier {
+	private static final int PERIOD = 30;
+	private static final int DIGITS_MOD = 1_000_000;
+	private static final int WINDOW = 1;
+
+	// segredo junto: um segredo novo (reset do TOTP) começa sem histórico
+	private record Last(String secret, long step) {
+	}
+
+	// Mac + buffers reaproveitados; pool em vez de ThreadLocal porque os handlers rodam em virtual threads
+	private static final class Hmac {
+		final Mac mac;
+		final byte[] counter = new byte[8];
+		final byte[] out = new byte[20];
+
+		Hmac() {
+			try {
+				mac = Mac.getInstance("HmacSHA1");
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private final int maxKeys = Math.max(1, Integer.getInteger("totp.keyCache", 10_000));
+	// segredo -> chave; acesso sob o monitor do próprio mapa
+	private final LinkedHashMap<String, SecretKeySpec> keys = new LinkedHashMap<>(16, 0.75f, true);
+	private final ConcurrentHashMap<String, Last> accepted = new ConcurrentHashMap<>();
+	private volatile long prunedStep;
+	private final ConcurrentLinkedQueue<Hmac> macs = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param account chave do registro anti-replay; null desliga o replay guard
+	 */
+	boolean verify(String account, String secretBase32, String code) {
+		int want = parse(code);
+		if (want < 0)
+			return false;
+		SecretKeySpec key = key(secretBase32);
+		long step = System.currentTimeMillis() / 1000 / PERIOD;
+		Hmac h = macs.poll();
+		if (h == null)
+			h = new Hmac();
+		try {
+			h.mac.init(key);
+			for (long s = step - WINDOW; s <= step + WINDOW; s++) {
+				if (code(h, s) == want)
+					return account == null || accept(account, secretBase32, s, step);
+			}
+			return false;
+		} catch (Exception e) {
+			return false;
+		} finally {
+			macs.offer(h);
+		}
+	}
+
+	private SecretKeySpec key(String secret) {
+		synchronized (keys) {
+			SecretKeySpec k = keys.get(secret);
+			if (k != null)
+				return k;
+		}
+		// decodifica fora do lock; dois verify simultâneos do mesmo segredo dão a mesma chave
+		SecretKeySpec k = new SecretKeySpec(new Base32().decode(secret), "HmacSHA1");
+		synchronized (keys) {
+			keys.put(secret, k);
+			Iterator<String> it = keys.keySet().iterator();
+			while (keys.size() > maxKeys) {
+				it.next();
+				it.remove();
+			}
+		}
+		return k;
+	}
+
+	// só aceita um time step maior que o último aceito; compute é atômico por conta, para dois logins
+	// simultâneos com o mesmo código
+	private boolean accept(String account, String secret, long s, long now) {
+		boolean[] ok = new boolean[1];
+		accepted.compute(account, (k, last) -> {
+			if (last != null && last.secret().equals(secret) && s <= last.step())
+				return last;
+			ok[0] = true;
+			return new Last(secret, s);
+		});
+		// no máximo uma varredura por time step; removeIf só tira a entrada se ela não mudou no meio
+		if (accepted.size() > maxKeys && prunedStep != now) {
+			prunedStep = now;
+			accepted.values().removeIf(l -> l.step() < now - WINDOW);
+		}
+		return ok[0];
+	}
+
+	// RFC 6238/4226: HMAC do contador big-endian, truncamento dinâmico
+	private static int code(Hmac h, long step) throws Exception {
+		byte[] c = h.counter;
+		for (int i = 7; i >= 0; i--) {
+			c[i] = (byte) step;
+			step >>>= 8;
+		}
+		h.mac.update(c);
+		h.mac.doFinal(h.out, 0);
+		byte[] d = h.out;
+		int o = d[d.length - 1] & 0xF;
+		int bin = ((d[o] & 0x7F) << 24) | ((d[o + 1] & 0xFF) << 16) | ((d[o + 2] & 0xFF) << 8) | (d[o + 3] & 0xFF);
+		return bin % DIGITS_MOD;
+	}
+
+	private static int parse(String code) {
+		if (code == null || code.length() != 6)
+			return -1;
+		int v = 0;
+		for (int i = 0; i < 6; i++) {
+			char ch = code.charAt(i);
+			if (ch < '0' || ch > '9')
+				return -1;
+			v = v * 10 + (ch - '0');
+		}
+		return v;
+	}
+}
@@ -5,14 +5,44 @@ import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
-public final class UserStore {
+/**
+ * Usuários divididos em shards pelo hash do nome, cada um com seu arquivo, log e monitor
+ * ({@code <db>.shards/07.json}, {@code 07.json.wal}). Leituras vão direto em mapas concorrentes,
+ * sem lock; escritas só disputam com escritas do mesmo shard, e um upload só regrava
+ * (modo JSON) ou compacta (modo WAL) o shard do próprio usuário.
+ * <p>
+ * Com {@code store.cacheBytes > 0} (só no modo WAL) a subida lê apenas o {@code 07.json.idx}
+ * (usuário -> offset da linha no snapshot) e cada {@code UserRec} é lido no primeiro acesso, ficando
+ * num cache CLOCK (aproximação de LRU) limitado pelo tamanho serializado. Usuários com mudanças
+ * ainda fora do snapshot ficam presos no cache até a próxima compactação.
+ */
+public final class UserStore implements Closeable {
 	public static final class StoredFile {
 		public String name;
-		public String b64;
+		public String b64; // só em bancos antigos; migrado para o BlobStore no load
 		public long ts;
+		public long size;
+		public String sha256; // chave do conteúdo no BlobStore; null quando o arquivo está em chunks
+		public List<Chunk> chunks; // delta sync: manifesto na ordem do arquivo
+		public String mac; // HMAC do manifesto calculado pelo cliente; o servidor só guarda
+	}
+
+	/** Pedaço de um arquivo enviado por delta sync, cifrado à parte. */
+	public static final class Chunk {
+		public String id; // HMAC do plaintext do chunk (chave do cliente)
+		public String sha256; // ciphertext no BlobStore
+		public long size;
 	}
 
 	public static final class UserRec {
@@ -20,59 +50,1108 @@ public final class UserStore {
 		public String pwdStored; // pbkdf2$sha256$iter$saltB64$dkB64
 		public String saltB64;
 		public String totpSecretBase32;
-		public Map<String, StoredFile> files = new HashMap<>();
+		// scrypt do cliente, fixado no cadastro: mudar depois trocaria a chave dos arquivos. 0 = 2^14/8/1
+		public int scryptN, scryptR, scryptP;
+		// concorrente e ordenado por nome: getFile lê sem lock enquanto putFile escreve, e é o índice do /files
+		public Map<String, StoredFile> files = new ConcurrentSkipListMap<>();
+		// id -> chunk de todos os manifestos do usuário mais os recém-enviados; montado sob demanda
+		transient volatile Map<String, Chunk> chunkIndex;
+		// índices do /files por data e por tamanho (desempate pelo nome); montados sob demanda
+		transient volatile NavigableSet<StoredFile> byTs, bySize;
+		// modo lazy: bit de uso do CLOCK e peso (bytes no snapshot) no cache
+		transient volatile boolean referenced;
+		transient long weight;
+	}
+
+	/** Ordem da listagem de arquivos. */
+	public enum FileSort {
+		NAME, TS, SIZE
+	}
+
+	private static final Comparator<StoredFile> BY_TS = Comparator.<StoredFile>comparingLong(f -> f.ts)
+			.thenComparing(f -> f.name);
+	private static final Comparator<StoredFile> BY_SIZE = Comparator.<StoredFile>comparingLong(f -> f.size)
+			.thenComparing(f -> f.name);
+
+	/**
+	 * JSON: reescreve o arquivo do shard a cada escrita (comportamento antigo, agora por shard).
+	 * WAL: cada mutação vira uma linha no log do shard, com snapshot periódico em segundo plano.
+	 */
+	public enum Mode {
+		JSON, WAL
+	}
+
+	// registro do WAL: op "user" (cadastro) ou "file" (upload)
+	private static final class LogRec {
+		String op;
+		String u;
+		UserRec user;
+		StoredFile file;
+		String pwd; // op "pwd" (rehash): só o hash novo, sem reescrever o registro inteiro
+	}
+
+	private static final class Shard {
+		final Path file;
+		// modo lazy: só os usuários carregados
+		final ConcurrentHashMap<String, UserRec> users = new ConcurrentHashMap<>();
+		WriteAheadLog wal;
+		volatile boolean snapshotRunning;
+		// modo lazy; fora index (trocado inteiro, nunca alterado), tudo sob o monitor
+		volatile Map<String, long[]> index = Map.of(); // usuário -> {offset, tamanho} da linha no snapshot
+		FileChannel snap;
+		Set<String> dirty = new HashSet<>(); // mudou depois do último snapshot: não pode sair do cache
+		Set<String> flushing = new HashSet<>(); // no snapshot sendo gravado
+		final ArrayDeque<String> clock = new ArrayDeque<>();
+		long weight;
+
+		Shard(Path file) {
+			this.file = file;
+		}
 	}
 
-	private final Map<String, UserRec> users = new HashMap<>();
+	private static final Type MAP_TYPE = new TypeToken<Map<String, UserRec>>() {
+	}.getType();
+
+	private final Shard[] shards;
 	private final File dbFile;
+	private final Path dir;
+	private final BlobStore blobs;
 	private final Gson gson = new Gson();
+	private final Mode mode;
+	private final ExecutorService snapshotter;
+	private final long cachePerShard; // 0 = tudo em memória
+	private final LongAdder loads = new LongAdder();
+	private final ScheduledExecutorService sweeper;
+	private final AtomicBoolean orphaned = new AtomicBoolean(); // algum blob pode ter perdido o dono desde a última varredura
+	private volatile boolean closed;
+
+	// só apaga blobs parados há mais que isto: cobre um upload já gravado no BlobStore mas ainda sem putFile
+	private static final long SWEEP_GRACE_MS = 10 * 60 * 1000;
+
+	public UserStore(File dbFile, BlobStore blobs) {
+		this(dbFile, blobs, Mode.valueOf(System.getProperty("store.mode", "wal").toUpperCase()),
+				Long.getLong("store.walMaxBytes", 64L << 20), Integer.getInteger("store.shards", 16),
+				Long.getLong("store.cacheBytes", 0));
+	}
+
+	public UserStore(File dbFile, BlobStore blobs, Mode mode, long walMaxBytes) {
+		this(dbFile, blobs, mode, walMaxBytes, Integer.getInteger("store.shards", 16));
+	}
 
-	public UserStore(File dbFile) {
+	public UserStore(File dbFile, BlobStore blobs, Mode mode, long walMaxBytes, int shardCount) {
+		this(dbFile, blobs, mode, walMaxBytes, shardCount, Long.getLong("store.cacheBytes", 0));
+	}
+
+	/**
+	 * @param walMaxBytes somado entre os shards; cada log roda com a sua fração
+	 * @param cacheBytes  0 carrega tudo na subida; acima disso liga o modo lazy com esse orçamento
+	 *                    (tamanho serializado, somado entre os shards)
+	 */
+	public UserStore(File dbFile, BlobStore blobs, Mode mode, long walMaxBytes, int shardCount, long cacheBytes) {
+		if (cacheBytes > 0 && mode != Mode.WAL)
+			throw new IllegalArgumentException("store.cacheBytes exige store.mode=wal");
+		this.cachePerShard = cacheBytes <= 0 ? 0 : Math.max(1, cacheBytes / shardCount);
 		this.dbFile = dbFile;
-		load();
+		this.dir = dbFile.toPath().resolveSibling(dbFile.getName() + ".shards");
+		this.blobs = blobs;
+		this.mode = mode;
+		this.shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++)
+			shards[i] = new Shard(dir.resolve(String.format("%02d.json", i)));
+		this.snapshotter = mode == Mode.WAL ? Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "store-snapshot");
+			t.setDaemon(true);
+			return t;
+		}) : null;
+		try {
+			Files.createDirectories(dir);
+			if (!lazy() || !openLazy()) {
+				boolean dirty = loadShards();
+				boolean legacy = loadLegacy();
+				dirty |= legacy;
+				dirty |= migrateBlobs();
+				// compacta o que veio dos logs (ou do banco antigo) antes de aceitar escritas novas;
+				// o modo lazy também precisa do layout de uma linha por usuário e do .idx
+				if (dirty || lazy()) {
+					compactAll();
+					if (legacy)
+						retireLegacy();
+				}
+			}
+			if (mode == Mode.WAL) {
+				long perShard = Math.max(1 << 20, walMaxBytes / shardCount);
+				for (Shard sh : shards)
+					sh.wal = new WriteAheadLog(walPath(sh.file), perShard, () -> rotate(sh));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "store-sweep");
+			t.setDaemon(true);
+			return t;
+		});
+		if (lazy()) {
+			long start = System.currentTimeMillis();
+			sweeper.execute(() -> sweepBlobs(start));
+		} else {
+			sweepBlobs(Long.MAX_VALUE);
+		}
+		// blobs trocados por uma sobrescrita saem na próxima passada, sem esperar um restart
+		long every = Math.max(1, Long.getLong("store.sweepInterval", 600));
+		sweeper.scheduleWithFixedDelay(() -> {
+			if (orphaned.getAndSet(false))
+				sweepBlobs(System.currentTimeMillis() - SWEEP_GRACE_MS);
+		}, every, every, TimeUnit.SECONDS);
+	}
+
+	static Path walPath(Path file) {
+		return file.resolveSibling(file.getFileName() + ".wal");
+	}
+
+	static Path idxPath(Path file) {
+		return file.resolveSibling(file.getFileName() + ".idx");
+	}
+
+	private boolean lazy() {
+		return cachePerShard > 0;
+	}
+
+	/** Usuários em memória agora (no modo lazy, o tamanho do cache). */
+	public int cachedUsers() {
+		int n = 0;
+		for (Shard sh : shards)
+			n += sh.users.size();
+		return n;
 	}
 
-	public synchronized UserRec get(String u) {
-		return users.get(u);
+	/** Quantos usuários já foram lidos do disco por falta no cache. */
+	public long userLoads() {
+		return loads.sum();
 	}
 
-	public synchronized boolean exists(String u) {
-		return users.containsKey(u);
+	// String.hashCode é definido pela especificação: o shard de um nome não muda entre execuções
+	private Shard shard(String u) {
+		return shards[Math.floorMod(u.hashCode(), shards.length)];
+	}
+
+	public UserRec get(String u) {
+		if (u == null)
+			return null;
+		Shard sh = shard(u);
+		UserRec r = sh.users.get(u);
+		if (r != null) {
+			if (lazy())
+				r.referenced = true;
+			return r;
+		}
+		if (!sh.index.containsKey(u))
+			return null;
+		synchronized (sh) {
+			return cached(sh, u);
+		}
 	}
 
-	public synchronized void put(UserRec r) {
-		users.put(r.username, r);
-		persist();
+	public boolean exists(String u) {
+		if (u == null)
+			return false;
+		Shard sh = shard(u);
+		return sh.users.containsKey(u) || sh.index.containsKey(u);
 	}
 
-	public synchronized void putFile(String u, StoredFile sf) {
-		users.get(u).files.put(sf.name, sf);
-		persist();
+	public void put(UserRec r) {
+		long t0 = System.nanoTime();
+		Shard sh = shard(r.username);
+		CompletableFuture<Void> f;
+		UserRec prev;
+		synchronized (sh) {
+			prev = sh.users.get(r.username);
+			admit(sh, adopt(r));
+			orphaned.set(true); // pode substituir um usuário com arquivos
+			f = log(sh, "user", r.username, r, null);
+		}
+		try {
+			await(f, t0);
+		} catch (RuntimeException e) {
+			undoUser(sh, r, prev);
+			throw e;
+		}
 	}
 
-	public synchronized StoredFile getFile(String u, String name) {
-		UserRec r = users.get(u);
-		return r == null ? null : r.files.get(name);
+	public boolean putIfAbsent(UserRec r) {
+		long t0 = System.nanoTime();
+		Shard sh = shard(r.username);
+		CompletableFuture<Void> f;
+		synchronized (sh) {
+			if (exists(r.username))
+				return false;
+			admit(sh, adopt(r));
+			f = log(sh, "user", r.username, r, null);
+		}
+		try {
+			await(f, t0);
+		} catch (RuntimeException e) {
+			undoUser(sh, r, null);
+			throw e;
+		}
+		return true;
 	}
 
-	private void load() {
+	public void putFile(String u, StoredFile sf) {
+		long t0 = System.nanoTime();
+		Shard sh = shard(u);
+		CompletableFuture<Void> f;
+		UserRec r;
+		StoredFile prev;
+		synchronized (sh) {
+			r = cached(sh, u);
+			markDirty(sh, u);
+			prev = r.files.put(sf.name, sf);
+			if (prev != null)
+				orphaned.set(true);
+			for (NavigableSet<StoredFile> s : Arrays.asList(r.byTs, r.bySize)) {
+				if (s == null)
+					continue;
+				if (prev != null)
+					s.remove(prev);
+				s.add(sf);
+			}
+			Map<String, Chunk> idx = r.chunkIndex;
+			if (sf.chunks != null && idx != null)
+				for (Chunk c : sf.chunks)
+					idx.put(c.id, c);
+			f = log(sh, "file", u, null, sf);
+		}
 		try {
-			if (!dbFile.exists())
+			await(f, t0);
+		} catch (RuntimeException e) {
+			undoFile(sh, r, sf, prev);
+			throw e;
+		}
+	}
+
+	/** Troca o hash da senha se ainda for {@code expected}; um rehash atrasado não desfaz uma troca mais nova. */
+	public boolean replacePassword(String u, String expected, String stored) {
+		long t0 = System.nanoTime();
+		Shard sh = shard(u);
+		CompletableFuture<Void> f;
+		synchronized (sh) {
+			UserRec r = cached(sh, u);
+			if (r == null || !Objects.equals(r.pwdStored, expected))
+				return false;
+			r.pwdStored = stored;
+			markDirty(sh, u);
+			LogRec rec = new LogRec();
+			rec.op = "pwd";
+			rec.u = u;
+			rec.pwd = stored;
+			f = log(sh, rec);
+		}
+		try {
+			await(f, t0);
+		} catch (RuntimeException e) {
+			synchronized (sh) {
+				UserRec r = sh.users.get(u);
+				if (r != null && r.pwdStored == stored)
+					r.pwdStored = expected;
+			}
+			throw e;
+		}
+		return true;
+	}
+
+	/** Ids de {@code ids} que o usuário ainda não tem, na ordem pedida. */
+	public List<String> missingChunks(String u, List<String> ids) {
+		UserRec r = get(u);
+		List<String> missing = new ArrayList<>();
+		Map<String, Chunk> idx = r == null ? Map.of() : chunkIndex(r);
+		Set<String> seen = new HashSet<>();
+		for (String id : ids)
+			if (!idx.containsKey(id) && seen.add(id))
+				missing.add(id);
+		return missing;
+	}
+
+	/**
+	 * Chunks de {@code ids} na ordem, ou null com os que faltam em {@code missing}. Uma consulta só, sob
+	 * o monitor do shard: no modo lazy o usuário pode sair do cache entre duas chamadas e levar junto
+	 * os chunks ainda sem manifesto, que aqui simplesmente contam como ausentes.
+	 */
+	public List<Chunk> resolveChunks(String u, List<String> ids, List<String> missing) {
+		Shard sh = shard(u);
+		synchronized (sh) {
+			UserRec r = cached(sh, u);
+			Map<String, Chunk> idx = r == null ? Map.of() : chunkIndex(r);
+			List<Chunk> out = new ArrayList<>(ids.size());
+			Set<String> seen = new HashSet<>();
+			for (String id : ids) {
+				Chunk c = idx.get(id);
+				if (c == null) {
+					if (seen.add(id))
+						missing.add(id);
+				} else {
+					out.add(c);
+				}
+			}
+			return missing.isEmpty() ? out : null;
+		}
+	}
+
+	public Chunk getChunk(String u, String id) {
+		UserRec r = get(u);
+		return r == null ? null : chunkIndex(r).get(id);
+	}
+
+	/**
+	 * Chunk recém-enviado, ainda fora de qualquer manifesto. Só fica em memória: se o servidor
+	 * reiniciar (ou, no modo lazy, o usuário sair do cache) antes do commit, o commit responde 409
+	 * e o cliente manda de novo.
+	 */
+	public void addChunk(String u, Chunk c) {
+		UserRec r = get(u);
+		if (r != null)
+			chunkIndex(r).putIfAbsent(c.id, c);
+	}
+
+	// montado uma vez sob o monitor do shard, para não perder um putFile concorrente; depois é só leitura concorrente
+	private Map<String, Chunk> chunkIndex(UserRec r) {
+		Map<String, Chunk> idx = r.chunkIndex;
+		if (idx != null)
+			return idx;
+		synchronized (shard(r.username)) {
+			if (r.chunkIndex == null) {
+				Map<String, Chunk> m = new ConcurrentHashMap<>();
+				for (StoredFile sf : r.files.values())
+					if (sf.chunks != null)
+						for (Chunk c : sf.chunks)
+							m.put(c.id, c);
+				r.chunkIndex = m;
+			}
+			return r.chunkIndex;
+		}
+	}
+
+	/**
+	 * Página de até {@code limit} arquivos em ordem de {@code sort}, começando depois de {@code after}
+	 * (o último item da página anterior; null = do início). Sem prefixo, ou ordenando por nome,
+	 * é O(log n + limit) nos índices ordenados; prefixo com data/tamanho ordena só os nomes do prefixo.
+	 */
+	public List<StoredFile> listFiles(String u, String prefix, FileSort sort, boolean desc, StoredFile after, int limit) {
+		UserRec r = get(u);
+		if (r == null)
+			return List.of();
+		NavigableMap<String, StoredFile> byName = (NavigableMap<String, StoredFile>) r.files;
+		if (prefix != null && !prefix.isEmpty())
+			byName = byName.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+		Iterable<StoredFile> src;
+		if (sort == FileSort.NAME) {
+			NavigableMap<String, StoredFile> m = desc ? byName.descendingMap() : byName;
+			src = (after == null ? m : m.tailMap(after.name, false)).values();
+		} else if (byName == r.files) {
+			NavigableSet<StoredFile> s = sortIndex(r, sort);
+			if (desc)
+				s = s.descendingSet();
+			src = after == null ? s : s.tailSet(after, false);
+		} else {
+			Comparator<StoredFile> cmp = sort == FileSort.TS ? BY_TS : BY_SIZE;
+			Comparator<StoredFile> c = desc ? cmp.reversed() : cmp;
+			List<StoredFile> l = new ArrayList<>(byName.values());
+			l.sort(c);
+			src = after == null ? l : l.stream().filter(f -> c.compare(f, after) > 0).toList();
+		}
+		List<StoredFile> out = new ArrayList<>(Math.min(limit, 1024));
+		for (StoredFile sf : src) {
+			if (out.size() == limit)
+				break;
+			out.add(sf);
+		}
+		return out;
+	}
+
+	private NavigableSet<StoredFile> sortIndex(UserRec r, FileSort sort) {
+		NavigableSet<StoredFile> s = sort == FileSort.TS ? r.byTs : r.bySize;
+		if (s != null)
+			return s;
+		synchronized (shard(r.username)) {
+			if (sort == FileSort.TS) {
+				if (r.byTs == null) {
+					NavigableSet<StoredFile> n = new ConcurrentSkipListSet<>(BY_TS);
+					n.addAll(r.files.values());
+					r.byTs = n;
+				}
+				return r.byTs;
+			}
+			if (r.bySize == null) {
+				NavigableSet<StoredFile> n = new ConcurrentSkipListSet<>(BY_SIZE);
+				n.addAll(r.files.values());
+				r.bySize = n;
+			}
+			return r.bySize;
+		}
+	}
+
+	public StoredFile getFile(String u, String name) {
+		UserRec r = get(u);
+		return r == null || name == null ? null : r.files.get(name);
+	}
+
+	/*
+	 * Espera o fsync do lote fora do monitor e registra o tempo total da escrita. A memória muda antes
+	 * do fsync, então um leitor concorrente pode ver um valor que ainda não é durável. Se o fsync falha,
+	 * quem chamou desfaz a própria mudança em memória (undoUser/undoFile), mas só se ninguém escreveu
+	 * por cima nesse meio tempo, e repassa o erro. A linha pode ter chegado ao log mesmo assim e voltar
+	 * num restart: falha aqui quer dizer "não sei se ficou", não "não ficou".
+	 */
+	private static void await(CompletableFuture<Void> f, long t0) {
+		f.join();
+		Metrics.STORE_PERSIST.record(System.nanoTime() - t0);
+	}
+
+	// fsync do put falhou: volta ao usuário anterior (ou ao do snapshot, no modo lazy) se r ainda é o atual
+	private void undoUser(Shard sh, UserRec r, UserRec prev) {
+		synchronized (sh) {
+			if (sh.users.get(r.username) != r)
+				return;
+			if (prev != null) {
+				admit(sh, prev);
+				return;
+			}
+			sh.users.remove(r.username);
+			if (lazy())
+				sh.weight -= r.weight;
+			orphaned.set(true);
+		}
+	}
+
+	// fsync do putFile falhou: volta à versão anterior do arquivo se sf ainda é a atual
+	private void undoFile(Shard sh, UserRec r, StoredFile sf, StoredFile prev) {
+		synchronized (sh) {
+			if (r.files.get(sf.name) != sf)
 				return;
-			try (Reader rd = new InputStreamReader(new FileInputStream(dbFile), StandardCharsets.UTF_8)) {
-				Type t = new TypeToken<Map<String, UserRec>>() {
-				}.getType();
-				Map<String, UserRec> m = gson.fromJson(rd, t);
-				if (m != null)
-					users.putAll(m);
+			if (prev != null)
+				r.files.put(sf.name, prev);
+			else
+				r.files.remove(sf.name);
+			orphaned.set(true);
+			for (NavigableSet<StoredFile> s : Arrays.asList(r.byTs, r.bySize)) {
+				if (s == null)
+					continue;
+				s.remove(sf);
+				if (prev != null)
+					s.add(prev);
 			}
-		} catch (Exception ignored) {
+			r.chunkIndex = null; // remontado sem os chunks de sf
+		}
+	}
+
+	// chamado com o monitor do shard seguro, para que a ordem no log seja a ordem de aplicação em memória
+	private CompletableFuture<Void> log(Shard sh, String op, String u, UserRec user, StoredFile file) {
+		LogRec rec = new LogRec();
+		rec.op = op;
+		rec.u = u;
+		rec.user = user;
+		rec.file = file;
+		return log(sh, rec);
+	}
+
+	private CompletableFuture<Void> log(Shard sh, LogRec rec) {
+		if (mode == Mode.JSON) {
+			persist(sh);
+			return CompletableFuture.completedFuture(null);
 		}
+		return sh.wal.append(gson.toJson(rec));
+	}
+
+	// o Gson devolve os mapas como LinkedTreeMap; aqui viram concorrentes e ordenados
+	private static UserRec adopt(UserRec r) {
+		if (!(r.files instanceof ConcurrentSkipListMap))
+			r.files = r.files == null ? new ConcurrentSkipListMap<>() : new ConcurrentSkipListMap<>(r.files);
+		return r;
 	}
 
-	private void persist() {
-		try (Writer wr = new OutputStreamWriter(new FileOutputStream(dbFile), StandardCharsets.UTF_8)) {
-			gson.toJson(users, wr);
+	private void place(UserRec r) {
+		Shard sh = shard(r.username);
+		synchronized (sh) {
+			admit(sh, adopt(r));
+		}
+	}
+
+	// sob o monitor: usuário novo ou substituído inteiro, ainda fora do snapshot
+	private void admit(Shard sh, UserRec r) {
+		UserRec prev = sh.users.put(r.username, r);
+		if (!lazy())
+			return;
+		r.weight = prev != null ? prev.weight : 512; // estimativa até o próximo snapshot medir
+		sh.weight += r.weight - (prev != null ? prev.weight : 0);
+		if (prev == null)
+			sh.clock.add(r.username);
+		sh.dirty.add(r.username);
+	}
+
+	private void markDirty(Shard sh, String u) {
+		if (lazy())
+			sh.dirty.add(u);
+	}
+
+	// sob o monitor: o usuário em memória, lido do snapshot se preciso
+	private UserRec cached(Shard sh, String u) {
+		UserRec r = sh.users.get(u);
+		if (r != null || !lazy())
+			return r;
+		long[] loc = sh.index.get(u);
+		if (loc == null)
+			return null;
+		try {
+			r = readUser(sh.snap, u, loc);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		r.weight = loc[1];
+		r.referenced = true;
+		evict(sh, r.weight);
+		sh.users.put(u, r);
+		sh.clock.add(u);
+		sh.weight += r.weight;
+		loads.increment();
+		return r;
+	}
+
+	// CLOCK: quem foi usado desde a última passada ganha outra volta; sujos não saem
+	private void evict(Shard sh, long incoming) {
+		for (int n = 2 * sh.clock.size(); n > 0 && sh.weight + incoming > cachePerShard; n--) {
+			String v = sh.clock.poll();
+			UserRec r = sh.users.get(v);
+			if (r == null)
+				continue;
+			if (r.referenced || sh.dirty.contains(v) || sh.flushing.contains(v)) {
+				r.referenced = false;
+				sh.clock.add(v);
+				continue;
+			}
+			sh.users.remove(v);
+			sh.weight -= r.weight;
+		}
+	}
+
+	private UserRec readUser(FileChannel ch, String u, long[] loc) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate((int) loc[1]);
+		while (b.hasRemaining())
+			if (ch.read(b, loc[0] + b.position()) < 0)
+				throw new EOFException("snapshot menor que o indice: " + u);
+		String line = new String(b.array(), StandardCharsets.UTF_8);
+		String key = gson.toJson(u) + ":";
+		if (!line.startsWith(key))
+			throw new IOException("indice nao confere com o snapshot: " + u);
+		return adopt(gson.fromJson(line.substring(key.length()), UserRec.class));
+	}
+
+	/**
+	 * Modo lazy: abre o índice de cada shard (ou o reconstrói varrendo o snapshot) e aplica os logs,
+	 * o que carrega só os usuários que eles tocam. false se antes é preciso migrar carregando tudo:
+	 * banco antigo, outra contagem de shards ou snapshot de antes do layout de uma linha por usuário.
+	 */
+	private boolean openLazy() throws IOException {
+		Path legacyLog = dbFile.toPath().resolveSibling(dbFile.getName() + ".wal");
+		if (dbFile.exists() || Files.exists(legacyLog) || Files.exists(legacyLog.resolveSibling(legacyLog.getFileName() + ".old")))
+			return false;
+		Set<String> expected = new HashSet<>();
+		for (Shard sh : shards) {
+			String n = sh.file.getFileName().toString();
+			Collections.addAll(expected, n, n + ".idx", n + ".wal", n + ".wal.old");
+		}
+		try (Stream<Path> s = Files.list(dir)) {
+			if (s.map(p -> p.getFileName().toString()).anyMatch(n -> n.matches("\\d+\\.json.*") && !expected.contains(n)
+					&& !n.endsWith(".tmp")))
+				return false;
+		}
+		List<Map<String, long[]>> idx = new ArrayList<>();
+		for (Shard sh : shards) {
+			Map<String, long[]> m = Files.exists(sh.file) ? readIndex(sh.file) : Map.of();
+			// usuário no arquivo de outro shard: a contagem de shards mudou
+			if (m == null || m.keySet().stream().anyMatch(u -> shard(u) != sh))
+				return false;
+			idx.add(m);
+		}
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].index = idx.get(i);
+			if (Files.exists(shards[i].file))
+				shards[i].snap = FileChannel.open(shards[i].file, StandardOpenOption.READ);
+		}
+		for (Shard sh : shards) {
+			Path log = walPath(sh.file);
+			if (!replay(log.resolveSibling(log.getFileName() + ".old"), sh) || !replay(log, sh)) {
+				// log com usuários de outro shard (contagem mudou com o snapshot vazio): volta ao zero e migra
+				for (Shard x : shards) {
+					if (x.snap != null)
+						x.snap.close();
+					x.snap = null;
+					x.index = Map.of();
+					x.users.clear();
+					x.clock.clear();
+					x.dirty.clear();
+					x.weight = 0;
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// o .idx se bater com o tamanho do snapshot, senão varre o snapshot; null se não está no layout de linhas
+	private Map<String, long[]> readIndex(Path file) throws IOException {
+		long size = Files.size(file);
+		Path idx = idxPath(file);
+		if (Files.exists(idx)) {
+			try (BufferedReader rd = Files.newBufferedReader(idx, StandardCharsets.UTF_8)) {
+				if (String.valueOf(size).equals(rd.readLine())) {
+					Map<String, long[]> m = new ConcurrentHashMap<>();
+					for (String line; (line = rd.readLine()) != null;) {
+						String[] p = line.split(" ", 3);
+						m.put(gson.fromJson(p[2], String.class), new long[] { Long.parseLong(p[0]), Long.parseLong(p[1]) });
+					}
+					return m;
+				}
+			}
+		}
+		return scanIndex(file);
+	}
+
+	private Map<String, long[]> scanIndex(Path file) throws IOException {
+		Map<String, long[]> m = new ConcurrentHashMap<>();
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long pos = 0, start = 0;
+			boolean first = true;
+			for (int c; (c = in.read()) != -1; pos++) {
+				if (c != '\n') {
+					line.write(c);
+					continue;
+				}
+				String l = line.toString(StandardCharsets.UTF_8);
+				if (first) {
+					if (!l.equals("{"))
+						return null;
+					first = false;
+				} else if (!l.equals("}")) {
+					int len = line.size() - (l.endsWith(",") ? 1 : 0);
+					// a linha começa com o nome como string JSON; só esse primeiro token é lido
+					m.put(new com.google.gson.stream.JsonReader(new StringReader(l)).nextString(), new long[] { start, len });
+				}
+				line.reset();
+				start = pos + 1;
+			}
+			// "{}" de um shard vazio gravado pelo Gson direto também não tem o layout
+			return first ? null : m;
+		}
+	}
+
+	/**
+	 * Lê todos os {@code NN.json} e seus logs, inclusive de uma contagem de shards diferente da atual,
+	 * e põe cada usuário no shard certo. true se algo precisa ser compactado.
+	 */
+	private boolean loadShards() throws IOException {
+		boolean dirty = false;
+		List<Path> files;
+		try (Stream<Path> s = Files.list(dir)) {
+			files = s.filter(p -> p.getFileName().toString().matches("\\d+\\.json")).sorted().toList();
+		}
+		Set<Path> expected = new HashSet<>();
+		for (Shard sh : shards)
+			expected.add(sh.file);
+		for (Path f : files) {
+			Map<String, UserRec> m = readMap(f);
+			for (UserRec r : m.values()) {
+				dirty |= !shard(r.username).file.equals(f);
+				place(r);
+			}
+			dirty |= !expected.contains(f);
+		}
+		// logs órfãos (sem .json) também contam
+		try (Stream<Path> s = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) s.filter(p -> p.getFileName().toString().matches("\\d+\\.json\\.wal"))
+					.sorted()::iterator) {
+				Path old = p.resolveSibling(p.getFileName() + ".old");
+				dirty |= replay(old) | replay(p);
+			}
+		}
+		// .old sem .wal ao lado
+		try (Stream<Path> s = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) s.filter(p -> p.getFileName().toString().matches("\\d+\\.json\\.wal\\.old"))
+					.sorted()::iterator) {
+				String n = p.getFileName().toString();
+				if (!Files.exists(p.resolveSibling(n.substring(0, n.length() - 4))))
+					dirty |= replay(p);
+			}
+		}
+		return dirty;
+	}
+
+	// banco de antes dos shards: server-db.json + server-db.json.wal(.old)
+	private boolean loadLegacy() throws IOException {
+		Path log = dbFile.toPath().resolveSibling(dbFile.getName() + ".wal");
+		Path old = log.resolveSibling(log.getFileName() + ".old");
+		if (!dbFile.exists() && !Files.exists(log) && !Files.exists(old))
+			return false;
+		if (dbFile.exists())
+			for (UserRec r : readMap(dbFile.toPath()).values())
+				place(r);
+		replay(old);
+		replay(log);
+		return true;
+	}
+
+	private void retireLegacy() throws IOException {
+		Path log = dbFile.toPath().resolveSibling(dbFile.getName() + ".wal");
+		Files.deleteIfExists(log.resolveSibling(log.getFileName() + ".old"));
+		Files.deleteIfExists(log);
+		if (dbFile.exists())
+			Files.move(dbFile.toPath(), dbFile.toPath().resolveSibling(dbFile.getName() + ".pre-shards"),
+					StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("UserStore: banco migrado para " + shards.length + " shards em " + dir);
+	}
+
+	// um shard ilegível derruba a subida: seguir com ele vazio faria a compactação apagá-lo
+	private Map<String, UserRec> readMap(Path f) throws IOException {
+		try (Reader rd = Files.newBufferedReader(f, StandardCharsets.UTF_8)) {
+			Map<String, UserRec> m = gson.fromJson(rd, MAP_TYPE);
+			return m == null ? Map.of() : m;
+		} catch (RuntimeException e) {
+			throw new IOException("banco corrompido: " + f, e);
+		}
+	}
+
+	private boolean replay(Path log) throws IOException {
+		return replay(log, null);
+	}
+
+	/**
+	 * Sem {@code owner}: true se o log existia. Com {@code owner}: false no primeiro registro de um
+	 * usuário de outro shard, true caso contrário.
+	 */
+	private boolean replay(Path log, Shard owner) throws IOException {
+		if (!Files.exists(log))
+			return owner != null;
+		try (BufferedReader rd = Files.newBufferedReader(log, StandardCharsets.UTF_8)) {
+			String line;
+			int n = 0;
+			RuntimeException torn = null;
+			while ((line = rd.readLine()) != null) {
+				n++;
+				if (torn != null)
+					throw new IOException("log corrompido: linha " + (n - 1) + " de " + log + " invalida no meio do arquivo", torn);
+				LogRec rec;
+				try {
+					rec = gson.fromJson(line, LogRec.class);
+				} catch (RuntimeException e) {
+					torn = e; // só pode ser a última, cortada por queda no meio do write
+					continue;
+				}
+				if (rec == null)
+					continue;
+				if (owner != null && shard("user".equals(rec.op) ? rec.user.username : rec.u) != owner)
+					return false;
+				if ("user".equals(rec.op)) {
+					place(rec.user);
+				} else if ("file".equals(rec.op)) {
+					UserRec r = get(rec.u);
+					if (r != null) {
+						r.files.put(rec.file.name, rec.file);
+						markDirty(shard(rec.u), rec.u);
+					}
+				} else if ("pwd".equals(rec.op)) {
+					UserRec r = get(rec.u);
+					if (r != null) {
+						r.pwdStored = rec.pwd;
+						markDirty(shard(rec.u), rec.u);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	// grava todos os shards e apaga logs e arquivos de uma contagem de shards antiga
+	private void compactAll() throws IOException {
+		Set<Path> keep = new HashSet<>();
+		for (Shard sh : shards) {
+			Map<String, long[]> idx = writeSnapshot(sh.file, sh.users, Map.of(), null);
+			keep.add(sh.file);
+			keep.add(idxPath(sh.file));
+			if (lazy()) {
+				// tudo foi carregado para migrar; daqui em diante só sob demanda
+				sh.index = idx;
+				sh.snap = FileChannel.open(sh.file, StandardOpenOption.READ);
+				sh.users.clear();
+				sh.clock.clear();
+				sh.dirty.clear();
+				sh.weight = 0;
+			}
+		}
+		try (Stream<Path> s = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) s::iterator)
+				if (!keep.contains(p))
+					Files.deleteIfExists(p);
+		}
+	}
+
+	// bancos antigos guardavam o ciphertext em base64 dentro do JSON: move para o BlobStore
+	private boolean migrateBlobs() {
+		boolean changed = false;
+		for (Shard sh : shards) {
+			for (UserRec r : sh.users.values()) {
+				for (StoredFile sf : r.files.values()) {
+					if (sf.b64 == null)
+						continue;
+					try {
+						BlobStore.Blob b = blobs.put(Base64.getDecoder().decode(sf.b64));
+						sf.sha256 = b.sha256();
+						sf.size = b.size();
+						sf.b64 = null;
+						changed = true;
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Remove blobs que ninguém referencia e que não mudam desde antes de {@code cutoff}. Na subida do
+	 * modo eager roda sem corte; fora isso roda em segundo plano com o servidor no ar, lendo cada
+	 * snapshot sem cachear, e o BlobStore renova a data de um blob reaproveitado por upload.
+	 */
+	private void sweepBlobs(long cutoff) {
+		Set<String> live = new HashSet<>();
+		try {
+			for (Shard sh : shards) {
+				if (closed)
+					return;
+				Map<String, long[]> idx;
+				List<UserRec> mem;
+				FileChannel ch = null;
+				synchronized (sh) {
+					idx = sh.index;
+					mem = new ArrayList<>(sh.users.values());
+					if (!idx.isEmpty())
+						ch = FileChannel.open(sh.file, StandardOpenOption.READ);
+				}
+				for (UserRec r : mem)
+					addLive(live, r);
+				if (ch != null)
+					try (FileChannel c = ch) {
+						for (Map.Entry<String, long[]> e : idx.entrySet()) {
+							if (closed)
+								return;
+							addLive(live, readUser(c, e.getKey(), e.getValue()));
+						}
+					}
+			}
+			int n = blobs.retainOnly(live, cutoff);
+			if (n > 0)
+				System.out.println("BlobStore: " + n + " blobs orfaos removidos");
+		} catch (IOException e) {
+			if (!closed)
+				e.printStackTrace();
+		}
+	}
+
+	private static void addLive(Set<String> live, UserRec r) {
+		for (StoredFile sf : r.files.values())
+			if (sf.sha256 != null)
+				live.add(sf.sha256);
+			else if (sf.chunks != null)
+				for (Chunk c : sf.chunks)
+					live.add(c.sha256);
+		// chunks enviados por /sync/chunk esperando o commit
+		Map<String, Chunk> idx = r.chunkIndex;
+		if (idx != null)
+			for (Chunk c : idx.values())
+				live.add(c.sha256);
+	}
+
+	/**
+	 * Thread do WAL do shard: troca de log e copia o shard sob o monitor, grava o snapshot fora dele.
+	 * No modo lazy só os usuários sujos são copiados; os outros vão crus do snapshot anterior.
+	 */
+	private void rotate(Shard sh) {
+		if (sh.snapshotRunning)
+			return;
+		Map<String, UserRec> copy;
+		Map<String, long[]> raw;
+		FileChannel src;
+		synchronized (sh) {
+			try {
+				// false: sobrou o .old de um snapshot que falhou. O log corrente continua onde está e o
+				// snapshot cobre os dois; reaplicar o começo dele sobre o snapshot dá o mesmo estado, e
+				// com o .old apagado a próxima rotação volta a trocar de log
+				if (!sh.wal.rollOver())
+					System.err.println("snapshot anterior de " + sh.file.getFileName() + " falhou; refazendo sem trocar o log");
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (lazy()) {
+				// flushing só sobra cheio se o snapshot anterior falhou: esses usuários continuam só no
+				// .old, que este snapshot vai apagar, então entram na cópia junto com os sujos de agora
+				if (sh.flushing.isEmpty()) {
+					Set<String> d = sh.flushing;
+					sh.flushing = sh.dirty;
+					sh.dirty = d;
+				} else {
+					sh.flushing.addAll(sh.dirty);
+					sh.dirty.clear();
+				}
+				copy = copyUsers(sh, sh.flushing);
+				raw = sh.index;
+				src = sh.snap;
+			} else {
+				copy = copyUsers(sh, sh.users.keySet());
+				raw = Map.of();
+				src = null;
+			}
+			sh.snapshotRunning = true;
+		}
+		snapshotter.execute(() -> {
+			try {
+				Map<String, long[]> idx = writeSnapshot(sh.file, copy, raw, src);
+				if (lazy())
+					install(sh, idx);
+				sh.wal.deleteOld();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				sh.snapshotRunning = false;
+			}
+		});
+	}
+
+	// snapshot novo no lugar: os sujos copiados agora podem sair do cache, e o peso vira o medido
+	private void install(Shard sh, Map<String, long[]> idx) throws IOException {
+		FileChannel old;
+		synchronized (sh) {
+			old = sh.snap;
+			sh.snap = FileChannel.open(sh.file, StandardOpenOption.READ);
+			sh.index = idx;
+			sh.flushing.clear();
+			for (UserRec r : sh.users.values()) {
+				long[] loc = idx.get(r.username);
+				if (loc != null && !sh.dirty.contains(r.username)) {
+					sh.weight += loc[1] - r.weight;
+					r.weight = loc[1];
+				}
+			}
+			evict(sh, 0);
+		}
+		if (old != null)
+			old.close();
+	}
+
+	private static Map<String, UserRec> copyUsers(Shard sh, Collection<String> names) {
+		Map<String, UserRec> m = new HashMap<>(names.size() * 2);
+		for (String u : names) {
+			UserRec r = sh.users.get(u);
+			if (r == null)
+				continue;
+			UserRec c = new UserRec();
+			c.username = r.username;
+			c.pwdStored = r.pwdStored;
+			c.saltB64 = r.saltB64;
+			c.totpSecretBase32 = r.totpSecretBase32;
+			c.scryptN = r.scryptN;
+			c.scryptR = r.scryptR;
+			c.scryptP = r.scryptP;
+			c.files = new HashMap<>(r.files); // StoredFile não é alterado depois do putFile
+			m.put(c.username, c);
+		}
+		return m;
+	}
+
+	/**
+	 * Grava em arquivo temporário e troca atomicamente, para nunca deixar um snapshot pela metade.
+	 * Um usuário por linha ({@code "nome":{...},}) continua sendo um JSON só para quem carrega tudo,
+	 * e o {@code .idx} ao lado guarda offset e tamanho de cada linha. Quem está em {@code raw} e não em
+	 * {@code m} é copiado byte a byte de {@code src}, sem passar pelo Gson.
+	 */
+	private Map<String, long[]> writeSnapshot(Path file, Map<String, UserRec> m, Map<String, long[]> raw, FileChannel src)
+			throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Map<String, long[]> idx = new ConcurrentHashMap<>(Math.max(16, (m.size() + raw.size()) * 2));
+		long size;
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+				OutputStream os = new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16)) {
+			os.write('{');
+			long pos = 1;
+			for (Map.Entry<String, UserRec> e : m.entrySet())
+				pos = writeLine(os, pos, idx, e.getKey(),
+						(gson.toJson(e.getKey()) + ":" + gson.toJson(e.getValue())).getBytes(StandardCharsets.UTF_8));
+			for (Map.Entry<String, long[]> e : raw.entrySet()) {
+				if (m.containsKey(e.getKey()))
+					continue;
+				ByteBuffer b = ByteBuffer.allocate((int) e.getValue()[1]);
+				while (b.hasRemaining())
+					if (src.read(b, e.getValue()[0] + b.position()) < 0)
+						throw new EOFException("snapshot menor que o indice: " + e.getKey());
+				pos = writeLine(os, pos, idx, e.getKey(), b.array());
+			}
+			os.write("\n}\n".getBytes(StandardCharsets.US_ASCII));
+			os.flush();
+			size = pos + 3;
+			ch.force(true);
+		}
+		Path idxTmp = idxPath(tmp);
+		try (Writer wr = Files.newBufferedWriter(idxTmp, StandardCharsets.UTF_8)) {
+			wr.write(size + "\n");
+			for (Map.Entry<String, long[]> e : idx.entrySet())
+				wr.write(e.getValue()[0] + " " + e.getValue()[1] + " " + gson.toJson(e.getKey()) + "\n");
+		}
+		// o .idx vai depois: se cair entre os dois, o tamanho não bate e a subida reconstrói o índice
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.move(idxTmp, idxPath(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return idx;
+	}
+
+	// vírgula e quebra antes de cada linha: a linha indexada é só {@code "nome":{...}}
+	private static long writeLine(OutputStream os, long pos, Map<String, long[]> idx, String u, byte[] line)
+			throws IOException {
+		byte[] sep = idx.isEmpty() ? new byte[] { '\n' } : new byte[] { ',', '\n' };
+		os.write(sep);
+		os.write(line);
+		idx.put(u, new long[] { pos + sep.length, line.length });
+		return pos + sep.length + line.length;
+	}
+
+	/** Espera os WALs gravarem o que está pendente e para as threads de fundo. */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		sweeper.shutdownNow();
+		for (Shard sh : shards)
+			if (sh.wal != null)
+				sh.wal.close();
+		if (snapshotter != null) {
+			// um snapshot em andamento ainda lê sh.snap e troca os arquivos do shard
+			snapshotter.shutdown();
+			try {
+				if (!snapshotter.awaitTermination(1, TimeUnit.MINUTES))
+					System.err.println("snapshot ainda rodando ao fechar o banco");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (Shard sh : shards)
+			synchronized (sh) {
+				if (sh.snap != null)
+					sh.snap.close();
+			}
+	}
+
+	// modo JSON: só o shard que mudou; sob o monitor dele
+	private void persist(Shard sh) {
+		try {
+			writeSnapshot(sh.file, sh.users, Map.of(), null);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,201 @@
+package org.example.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Log append-only (uma linha JSON por mutação) com group commit: uma única
+ * thread escritora junta tudo o que chegou na fila e faz um só fsync para o lote.
+ * <p>
+ * Um lote que falha é cortado do arquivo, para o próximo não ficar depois de uma linha pela metade;
+ * se nem o corte der certo, o log para de aceitar registros. Só a última linha pode estar cortada
+ * (queda no meio do write), e ela é descartada ao abrir.
+ */
+final class WriteAheadLog implements Closeable {
+	private record Pending(byte[] line, CompletableFuture<Void> done) {
+	}
+
+	private static final Pending STOP = new Pending(new byte[0], null);
+
+	private final Path path;
+	private final Path oldPath;
+	private final long maxBytes;
+	private final Runnable onFull;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private FileChannel ch;
+	private long size;
+	private volatile IOException failed; // o arquivo ficou num estado que não se sabe desfazer
+
+	/**
+	 * @param onFull chamado na thread escritora quando o log passa de {@code maxBytes};
+	 *               normalmente faz {@link #rollOver()} e agenda um snapshot.
+	 */
+	WriteAheadLog(Path path, long maxBytes, Runnable onFull) throws IOException {
+		this.path = path;
+		this.oldPath = path.resolveSibling(path.getFileName() + ".old");
+		this.maxBytes = maxBytes;
+		this.onFull = onFull;
+		trimTornTail(path);
+		this.ch = open(path);
+		this.size = ch.size();
+		this.writer = new Thread(this::run, "wal-" + path.getFileName());
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	Path path() {
+		return path;
+	}
+
+	Path oldPath() {
+		return oldPath;
+	}
+
+	/** Enfileira um registro; o future completa depois do fsync do lote que o contém. */
+	CompletableFuture<Void> append(String json) {
+		if (failed != null)
+			return CompletableFuture.failedFuture(failed);
+		byte[] b = (json + "\n").getBytes(StandardCharsets.UTF_8);
+		CompletableFuture<Void> f = new CompletableFuture<>();
+		queue.add(new Pending(b, f));
+		return f;
+	}
+
+	/**
+	 * Grava o que estiver pendente, fecha o log corrente, renomeia para {@code .old}
+	 * e abre um log vazio. Só pode ser chamado na thread escritora (dentro de {@code onFull})
+	 * e com o lock do dono seguro, para que nenhum append novo entre no meio.
+	 *
+	 * @return false se ainda existe um {@code .old} de uma rotação anterior
+	 */
+	boolean rollOver() throws IOException {
+		if (Thread.currentThread() != writer)
+			throw new IllegalStateException("rollOver fora da thread do WAL");
+		if (Files.exists(oldPath))
+			return false;
+		if (failed != null)
+			throw failed;
+		List<Pending> batch = new ArrayList<>();
+		queue.drainTo(batch);
+		boolean stop = batch.remove(STOP);
+		writeBatch(batch);
+		if (stop)
+			queue.add(STOP);
+		ch.close();
+		Files.move(path, oldPath, StandardCopyOption.ATOMIC_MOVE);
+		ch = open(path);
+		size = 0;
+		return true;
+	}
+
+	void deleteOld() throws IOException {
+		Files.deleteIfExists(oldPath);
+	}
+
+	private void run() {
+		List<Pending> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+			} catch (InterruptedException e) {
+				return;
+			}
+			boolean stop = batch.remove(STOP);
+			writeBatch(batch);
+			batch.clear();
+			if (stop)
+				return;
+			if (size >= maxBytes) {
+				try {
+					onFull.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void writeBatch(List<Pending> batch) {
+		if (batch.isEmpty())
+			return;
+		if (failed != null) {
+			for (Pending p : batch)
+				p.done().completeExceptionally(failed);
+			return;
+		}
+		long start = size;
+		try {
+			for (Pending p : batch) {
+				ByteBuffer bb = ByteBuffer.wrap(p.line());
+				while (bb.hasRemaining())
+					size += ch.write(bb);
+			}
+			ch.force(false);
+			for (Pending p : batch)
+				p.done().complete(null);
+		} catch (IOException e) {
+			// tira o lote inteiro: uma linha cortada no meio do log esconderia tudo o que vem depois
+			try {
+				ch.truncate(start);
+				ch.force(false);
+				size = start;
+			} catch (IOException t) {
+				e.addSuppressed(t);
+				failed = new IOException("WAL " + path + " inutilizavel depois de falha na escrita", e);
+				System.err.println(failed.getMessage() + ": " + t);
+			}
+			for (Pending p : batch)
+				p.done().completeExceptionally(e);
+		}
+	}
+
+	// descarta a última linha se ela não termina em '\n' (queda no meio do write)
+	private static void trimTornTail(Path p) throws IOException {
+		if (!Files.exists(p))
+			return;
+		try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long end = ch.size();
+			ByteBuffer b = ByteBuffer.allocate(8192);
+			for (long pos = end; pos > 0;) {
+				int n = (int) Math.min(b.capacity(), pos);
+				pos -= n;
+				b.clear().limit(n);
+				while (b.hasRemaining())
+					if (ch.read(b, pos + b.position()) < 0)
+						throw new EOFException();
+				for (int i = n - 1; i >= 0; i--) {
+					if (b.get(i) != '\n')
+						continue;
+					long keep = pos + i + 1;
+					if (keep < end)
+						ch.truncate(keep);
+					return;
+				}
+			}
+			if (end > 0)
+				ch.truncate(0);
+		}
+	}
+
+	private static FileChannel open(Path p) throws IOException {
+		return FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public void close() throws IOException {
+		queue.add(STOP);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ch.close();
+	}
+}